@@ -0,0 +1,204 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package GUI;
+
+import beanes.*;
+import javax.swing.*;
+import javax.swing.table.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Lists the roms of the library directory from the index, loads the selected
+ * one and rescans the directory on request.
+ */
+public class LibraryPanel extends JFrame {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private GUI gui;
+    private ROMLibrary library;
+    private File indexFile;
+    private java.util.List<ROMLibrary.Entry> entries;
+    private Vector<String> cols = new Vector<String>();
+    private DefaultTableModel model;
+    private JTable table;
+    private JLabel status = new JLabel();
+    private JButton loadButton = new JButton("load");
+    private JButton scanButton = new JButton("rescan");
+    private JButton dirButton = new JButton("directory");
+    
+    
+    public LibraryPanel(GUI gui, ROMLibrary library, File indexFile) {
+        super("ROM Library");
+        this.gui = gui;
+        this.library = library;
+        this.indexFile = indexFile;
+        
+        cols.add("Name");
+        cols.add("Mapper");
+        cols.add("PRG");
+        cols.add("CHR");
+        cols.add("TV");
+        cols.add("CRC");
+        
+        model = new DefaultTableModel(cols, 0) {
+            public boolean isCellEditable(int row, int col) {
+                return false;
+            }
+        };
+        table = new JTable(model);
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        
+        table.addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e) {
+                if(e.getClickCount() == 2) loadSelected();
+            }
+        });
+        
+        loadButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                loadSelected();
+            }
+        });
+        
+        scanButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                scan();
+            }
+        });
+        
+        dirButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if(chooseDirectory()) scan();
+            }
+        });
+        
+        
+        // build GUI
+        setLayout(new BorderLayout());
+        
+        JPanel southPanel = new JPanel();
+        
+        southPanel.add(status);
+        southPanel.add(dirButton);
+        southPanel.add(scanButton);
+        southPanel.add(loadButton);
+        add(southPanel, BorderLayout.SOUTH);
+        
+        add(new JScrollPane(table), BorderLayout.CENTER);
+        
+        setSize(new Dimension(700, 400));
+        setMinimumSize(new Dimension(500, 300));
+        
+        refresh();
+        setVisible(true);
+        
+        if(getDirectory() == null && chooseDirectory())
+            scan();
+    }
+    
+    
+    private File getDirectory() {
+        String dir = BeaNES.getProperties().getProperty(BeaNESProperties.PROPERTY_ROM_LIBRARY);
+        
+        return (dir == null)?null:new File(dir);
+    }
+    
+    
+    private boolean chooseDirectory() {
+        JFileChooser chooser = new JFileChooser(getDirectory());
+        
+        chooser.setDialogTitle("Select ROM Directory");
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        
+        if(chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+            return false;
+        
+        BeaNES.getProperties().setProperty(BeaNESProperties.PROPERTY_ROM_LIBRARY, chooser.getSelectedFile().getAbsolutePath());
+        return true;
+    }
+    
+    
+    /**
+     * Brings the index up to date in the background and saves it.
+     */
+    private void scan() {
+        final File dir = getDirectory();
+        if(dir == null) return;
+        
+        status.setText("scanning...");
+        scanButton.setEnabled(false);
+        
+        new Thread() {
+            public void run() {
+                String message;
+                
+                try {
+                    int read = library.scan(dir);
+                    library.writeIndex(indexFile);
+                    message = read + " files read";
+                } catch(Exception e) {
+                    message = e.getMessage();
+                }
+                
+                final String text = message;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        refresh();
+                        status.setText(text);
+                        scanButton.setEnabled(true);
+                    }
+                });
+            }
+        }.start();
+    }
+    
+    
+    private void refresh() {
+        entries = library.getEntries();
+        model.setRowCount(0);
+        
+        for(ROMLibrary.Entry entry : entries) {
+            Vector<Object> row = new Vector<Object>();
+            
+            row.add(entry.getName());
+            row.add(entry.header.mapper);
+            row.add(entry.header.prgSize/1024 + "K");
+            row.add(entry.header.chrSize/1024 + "K");
+            row.add(entry.header.getTVSystemName());
+            row.add(String.format("%08x", entry.crc));
+            
+            model.addRow(row);
+        }
+    }
+    
+    
+    private void loadSelected() {
+        int row = table.getSelectedRow();
+        if(row < 0) return;
+        
+        gui.loadROM(entries.get(row).createROM(gui.getNES()));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package beanes;
+
+import javax.sound.sampled.*;
+
+
+/**
+ * Plays the samples on the sound card.
+ */
+public class AudioOutput implements AudioSink {
+    
+    private Mixer mixer;
+    private SourceDataLine dataLine;
+    private AudioFormat audioFormat;
+    
+    public AudioOutput(int sampleRate) {
+        mixer = AudioSystem.getMixer(AudioSystem.getMixerInfo()[1]);
+        audioFormat = new AudioFormat(sampleRate, 16, 1, true, false); // 1 for mono 2 for stereo
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, audioFormat, 44100);
+        
+        try {
+            dataLine = (SourceDataLine)AudioSystem.getLine(info);
+            dataLine.open(audioFormat);
+            dataLine.start();
+            
+        } catch(Exception e) {
+            System.out.println("could not open audio data line");
+        }
+    }
+    
+    
+    public void writeSamples(byte[] samples, int offset, int length) {
+        if(dataLine != null)
+            dataLine.write(samples, offset, length);
+    }
+}
@@ -0,0 +1,29 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package beanes;
+
+
+public interface AudioSink {
+    
+    /**
+     * Called by the papu with length bytes of 8 bit mono samples at 44100 Hz.
+     */
+    public abstract void writeSamples(byte[] samples, int offset, int length);
+}
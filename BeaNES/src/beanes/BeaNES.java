@@ -32,9 +32,11 @@ public class BeaNES{
     public final static String PROGRAM_STRING   = PROGRAM_NAME + "-" + PROGRAM_VERSION;
     
     private Clock clock;
+    private Scheduler scheduler;
     private VideoOutput video;
+    private FrameSink frameSink;
     private JoypadInput[] joypads = new JoypadInput[2];
-    private DisplayMode fullScreenDisplayMode = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode();
+    private DisplayMode fullScreenDisplayMode;
     private PPU ppu;
     private PAPU papu;
     private ROM rom;
@@ -47,17 +49,39 @@ public class BeaNES{
         
         //initialize nes hardware
         
-        properties  = new BeaNESProperties();
         clock       = new Clock(this);
+        scheduler   = new Scheduler();
         cpu         = new CPU(this);
         ppu         = new PPU(this);
         video       = new VideoOutput(this);
-        papu        = new PAPU(this);
+        frameSink   = video;
+        papu        = new PAPU(this, new AudioOutput(44100));
         
         // initialize joypads
         for(int i = 0 ;i < joypads.length; i++)
             joypads[i] = new JoypadInput(this, i);  
     }
+    
+    
+    /**
+     * Creates a nes without a window or sound card. Frames go to frameSink and
+     * samples to audioSink, either can be null. Nothing runs until powerUp is
+     * called, frames are then run with Clock.runFrame on the calling thread.
+     */
+    public BeaNES(FrameSink frameSink, AudioSink audioSink) {
+        this.frameSink = frameSink;
+        
+        clock       = new Clock(this);
+        scheduler   = new Scheduler();
+        cpu         = new CPU(this);
+        ppu         = new PPU(this);
+        papu        = new PAPU(this, audioSink);
+        
+        clock.setThrottle(false);
+        
+        for(int i = 0 ;i < joypads.length; i++)
+            joypads[i] = new JoypadInput(this, i);  
+    }
 
     
     public void start() {
@@ -88,9 +112,21 @@ public class BeaNES{
     
     public void hardReset() {
         stop();
+        powerUp();
+        clock.start();
+    }
+    
+    
+    /**
+     * Resets the hardware without starting the clock thread.
+     */
+    public void powerUp() {
+        if(clock.getRewind() != null)
+            clock.getRewind().clear();
+        
+        scheduler.reset();
         cpu.hardReset();
         ppu.hardReset();
-        clock.start();
     }
     
     
@@ -102,11 +138,21 @@ public class BeaNES{
     public Clock getClock() {
         return clock;
     }
+    
+    
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
 
 
     public VideoOutput getVideoOutput() {
         return video;
     }
+    
+    
+    public FrameSink getFrameSink() {
+        return frameSink;
+    }
 
     
     public JoypadInput getJoypadInput(int num) {
@@ -122,7 +168,8 @@ public class BeaNES{
     public void loadROM(ROM rom) {
         this.rom = rom;
         rom.load();
-        rom.getMapper().loadROM(rom);
+        if(rom.getMapper() != null)
+            rom.getMapper().loadROM(rom);
     }
     
     
@@ -136,6 +183,9 @@ public class BeaNES{
     }
 
     public DisplayMode getFullScreenDisplayMode() {
+        if(fullScreenDisplayMode == null)
+            fullScreenDisplayMode = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode();
+        
         return fullScreenDisplayMode;
     }
     
@@ -149,7 +199,13 @@ public class BeaNES{
         gui.start();
     }
     
-    public static BeaNESProperties getProperties() {
+    /**
+     * The properties are loaded on first use and shared by all nes instances.
+     */
+    public static synchronized BeaNESProperties getProperties() {
+        if(properties == null)
+            properties = new BeaNESProperties();
+        
         return properties;
     }
 }
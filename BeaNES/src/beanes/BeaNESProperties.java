@@ -26,9 +26,13 @@ import java.io.*;
 public class BeaNESProperties extends Properties {
     
     public static String PROPERTY_ROMPATH = "romPath";
+    public static String PROPERTY_ROM_LIBRARY = "romLibrary";
     public static String PROPERTY_FULLSCREEN_RESOLUTION_MODE = "fullscreenResolutionMode";
     public static String PROPERTY_SHOW_FPS = "showFPS";
     public static String PROPERTY_THROTTLE = "throttle";
+    public static String PROPERTY_NO_SPRITE_FLICKER = "noSpriteFlicker";
+    public static String PROPERTY_REWIND = "rewind";
+    public static String PROPERTY_BLOCK_COMPILER = "blockCompiler";
     public static String PROPERTY_CONTROLLER1 = "controller1";
     public static String PROPERTY_CONTROLLER2 = "controller2";
     
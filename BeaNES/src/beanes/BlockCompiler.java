@@ -0,0 +1,373 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package beanes;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+
+/**
+ * Translates hot 6502 blocks into classes implementing CompiledBlock so HotSpot
+ * compiles each of them to native code of its own.
+ *
+ * The generated run method is straight line code. Each instruction stores the
+ * next PC in CPU.regPC, charges its cycles and calls the CPU method of its
+ * mnemonic with the addressing mode and effective address as constants (or
+ * works the address out through CPU.fetchAddress for the indexed and indirect
+ * modes). Those methods are small enough to be inlined, so the opcode switch is
+ * gone. Between instructions the block returns if CPU.isBlockExit() says so.
+ *
+ * The class files are written by hand (version 49, so no stack map frames are
+ * needed). On Java 15 and later they are defined as hidden classes with
+ * Lookup.defineHiddenClass, which is looked up by reflection because the
+ * project is still built for older targets. Elsewhere each class gets a class
+ * loader of its own. Either way it is unloaded once its block is thrown away.
+ */
+public class BlockCompiler {
+    
+    private static final String CPU_CLASS = "beanes/CPU";
+    private static final String INTERFACE_CLASS = "beanes/CompiledBlock";
+    
+    private static final int ALOAD_0 = 0x2A;
+    private static final int ALOAD_1 = 0x2B;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int IFEQ = 0x99;
+    private static final int IRETURN = 0xAC;
+    private static final int RETURN = 0xB1;
+    private static final int PUTFIELD = 0xB5;
+    private static final int INVOKEVIRTUAL = 0xB6;
+    private static final int INVOKESPECIAL = 0xB7;
+    
+    private static int classCount = 0;
+    
+    // Lookup.defineHiddenClass and its arguments, null before Java 15
+    private static Method defineHiddenClass;
+    private static Object lookup;
+    private static Object classOptions;
+    
+    static {
+        try {
+            Class<?> lookupClass = Class.forName("java.lang.invoke.MethodHandles$Lookup");
+            Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            
+            classOptions = Array.newInstance(optionClass, 0);
+            defineHiddenClass = lookupClass.getMethod("defineHiddenClass", byte[].class, boolean.class, classOptions.getClass());
+            lookup = Class.forName("java.lang.invoke.MethodHandles").getMethod("lookup").invoke(null);
+        } catch(Exception e) {
+            defineHiddenClass = null;
+        }
+    }
+    
+    // constant pool
+    private ByteArrayOutputStream pool;
+    private DataOutputStream poolOut;
+    private HashMap<String, Integer> poolEntries;
+    private int poolCount;
+    
+    // code of the run method
+    private ByteArrayOutputStream code;
+    private int instructions;
+    
+    
+    /**
+     * Starts a new block.
+     */
+    public void begin() {
+        pool = new ByteArrayOutputStream();
+        poolOut = new DataOutputStream(pool);
+        poolEntries = new HashMap<String, Integer>();
+        poolCount = 1;
+        code = new ByteArrayOutputStream();
+        instructions = 0;
+    }
+    
+    
+    /**
+     * Adds an instruction to the block.
+     *
+     * @param mnemonic name of the CPU method running it, e.g. lda
+     * @param address the effective address if resolved, the operand otherwise
+     * @param cycles cycles charged for a resolved instruction
+     */
+    public void addInstruction(int nextPC, int opcode, String mnemonic, int addressingMode, int address,
+            boolean resolved, int cycles) {
+        
+        // leave the block if the previous instruction asked for it
+        if(instructions > 0) {
+            code.write(ALOAD_1);
+            invoke(INVOKEVIRTUAL, CPU_CLASS, "isBlockExit", "()Z");
+            
+            ByteArrayOutputStream exit = new ByteArrayOutputStream();
+            pushInt(exit, instructions);
+            exit.write(IRETURN);
+            
+            code.write(IFEQ);
+            writeShort(code, 3 + exit.size());
+            code.write(exit.toByteArray(), 0, exit.size());
+        }
+        
+        code.write(ALOAD_1);
+        pushInt(code, nextPC);
+        code.write(PUTFIELD);
+        writeShort(code, reference(9, CPU_CLASS, "regPC", "I"));
+        
+        if(resolved) {
+            code.write(ALOAD_1);
+            pushInt(code, cycles);
+            invoke(INVOKEVIRTUAL, CPU_CLASS, "addCycles", "(I)V");
+            
+            code.write(ALOAD_1);
+            pushInt(code, addressingMode);
+            pushInt(code, address);
+        } else {
+            code.write(ALOAD_1);
+            pushInt(code, addressingMode);
+            code.write(ALOAD_1);
+            pushInt(code, opcode);
+            pushInt(code, address);
+            invoke(INVOKEVIRTUAL, CPU_CLASS, "fetchAddress", "(II)I");
+        }
+        
+        invoke(INVOKEVIRTUAL, CPU_CLASS, mnemonic, "(II)V");
+        instructions++;
+    }
+    
+    
+    /**
+     * Defines the class of the block and returns an instance of it, or null if
+     * that failed.
+     */
+    public CompiledBlock finish() {
+        pushInt(code, instructions);
+        code.write(IRETURN);
+        
+        String name;
+        synchronized(BlockCompiler.class) {
+            name = "beanes/CompiledBlock" + (classCount++);
+        }
+        
+        try {
+            int thisClass = classEntry(name);
+            int superClass = classEntry("java/lang/Object");
+            int interfaceClass = classEntry(INTERFACE_CLASS);
+            int initName = utf8("<init>");
+            int initType = utf8("()V");
+            int runName = utf8("run");
+            int runType = utf8("(L" + CPU_CLASS + ";)I");
+            int codeName = utf8("Code");
+            
+            ByteArrayOutputStream init = new ByteArrayOutputStream();
+            init.write(ALOAD_0);
+            init.write(INVOKESPECIAL);
+            writeShort(init, reference(10, "java/lang/Object", "<init>", "()V"));
+            init.write(RETURN);
+            
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            
+            out.writeShort(0x0031);         // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(interfaceClass);
+            out.writeShort(0);              // fields
+            
+            out.writeShort(2);              // methods
+            writeMethod(out, initName, initType, codeName, 1, 1, init);
+            writeMethod(out, runName, runType, codeName, 5, 2, code);
+            out.writeShort(0);              // attributes
+            
+            byte[] data = bytes.toByteArray();
+            Class<?> blockClass;
+            
+            if(defineHiddenClass != null) {
+                Object hiddenLookup = defineHiddenClass.invoke(lookup, data, Boolean.TRUE, classOptions);
+                blockClass = (Class<?>)hiddenLookup.getClass().getMethod("lookupClass").invoke(hiddenLookup);
+            } else {
+                blockClass = new BlockLoader(CPU.class.getClassLoader()).define(name.replace('/', '.'), data);
+            }
+            
+            return (CompiledBlock)blockClass.getDeclaredConstructor().newInstance();
+        } catch(Exception e) {
+            System.out.println("Could not compile block: " + e);
+        } catch(LinkageError e) {
+            System.out.println("Could not compile block: " + e);
+        }
+        
+        return null;
+    }
+    
+    
+    private static void writeMethod(DataOutputStream out, int name, int type, int codeName, int maxStack,
+            int maxLocals, ByteArrayOutputStream code) throws IOException {
+        out.writeShort(0x0001);             // public
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        
+        out.writeShort(codeName);
+        out.writeInt(12 + code.size());
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.size());
+        code.writeTo(out);
+        out.writeShort(0);                  // exception table
+        out.writeShort(0);                  // attributes
+    }
+    
+    
+    private void invoke(int instruction, String owner, String name, String type) {
+        code.write(instruction);
+        writeShort(code, reference(10, owner, name, type));
+    }
+    
+    
+    private void pushInt(ByteArrayOutputStream out, int value) {
+        if(value >= 0 && value <= 5) {
+            out.write(ICONST_0 + value);
+        } else if(value >= -128 && value <= 127) {
+            out.write(BIPUSH);
+            out.write(value);
+        } else if(value >= -32768 && value <= 32767) {
+            out.write(SIPUSH);
+            writeShort(out, value);
+        } else {
+            out.write(LDC_W);
+            writeShort(out, integer(value));
+        }
+    }
+    
+    
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+    
+    
+    /*
+     * constant pool entries, each added once
+     */
+    
+    private int utf8(String value) {
+        Integer index = poolEntries.get("U" + value);
+        
+        if(index == null) {
+            try {
+                poolOut.writeByte(1);
+                poolOut.writeUTF(value);
+            } catch(IOException e) { }
+            
+            index = poolCount++;
+            poolEntries.put("U" + value, index);
+        }
+        
+        return index;
+    }
+    
+    
+    private int integer(int value) {
+        Integer index = poolEntries.get("I" + value);
+        
+        if(index == null) {
+            try {
+                poolOut.writeByte(3);
+                poolOut.writeInt(value);
+            } catch(IOException e) { }
+            
+            index = poolCount++;
+            poolEntries.put("I" + value, index);
+        }
+        
+        return index;
+    }
+    
+    
+    private int classEntry(String name) {
+        Integer index = poolEntries.get("C" + name);
+        
+        if(index == null) {
+            int nameIndex = utf8(name);
+            
+            try {
+                poolOut.writeByte(7);
+                poolOut.writeShort(nameIndex);
+            } catch(IOException e) { }
+            
+            index = poolCount++;
+            poolEntries.put("C" + name, index);
+        }
+        
+        return index;
+    }
+    
+    
+    /**
+     * A Fieldref (tag 9) or Methodref (tag 10).
+     */
+    private int reference(int tag, String owner, String name, String type) {
+        String key = "R" + owner + "." + name + type;
+        Integer index = poolEntries.get(key);
+        
+        if(index == null) {
+            int ownerIndex = classEntry(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            
+            try {
+                poolOut.writeByte(12);      // NameAndType
+                poolOut.writeShort(nameIndex);
+                poolOut.writeShort(typeIndex);
+                int nameAndType = poolCount++;
+                
+                poolOut.writeByte(tag);
+                poolOut.writeShort(ownerIndex);
+                poolOut.writeShort(nameAndType);
+            } catch(IOException e) { }
+            
+            index = poolCount++;
+            poolEntries.put(key, index);
+        }
+        
+        return index;
+    }
+    
+    
+    private static class BlockLoader extends ClassLoader {
+        
+        BlockLoader(ClassLoader parent) {
+            super(parent);
+        }
+        
+        Class<?> define(String name, byte[] data) {
+            return defineClass(name, data, 0, data.length);
+        }
+    }
+}
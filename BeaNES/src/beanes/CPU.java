@@ -20,6 +20,7 @@
 package beanes;
 
 import java.util.*;
+import java.nio.*;
 
 
 public class CPU {
@@ -29,16 +30,106 @@ public class CPU {
     public static int CPU_MEMORY_SIZE = 0x10000;
     public static double FREQUENCY = 1789772.5d;
     
-    public short[] cpuMemory;
+    public byte[] cpuMemory;
+    
+    /*
+     * memory page table (one entry per 256 byte page of the address space)
+     * a null entry means the access is handed to the memory mapper (I/O registers, bank switching)
+     */
+    private byte[][] readPages;
+    private int[] readOffsets;
+    private byte[][] writePages;
+    private int[] writeOffsets;
+    
+    /*
+     * decoded instruction blocks, one BlockPage per 256 bytes of memory mapped into
+     * the page table, so mirrors of the same RAM and a PRG bank switched out and back
+     * in again share their blocks
+     */
+    private boolean blockCache = true;
+    private BlockPage[] blockPages;
+    private BlockPage[] writeBlockPages;
+    private IdentityHashMap<byte[], BlockPage[]> blockMemory;
+    private Block currentBlock;
+    private int blockIndex;
+    
+    // instructions allowed in idle loops (they only read memory)
+    private static final String IDLE_INSTRUCTIONS = "LDA LDX LDY CMP CPX CPY BIT AND ORA EOR ADC SBC "
+            + "ASL LSR ROL ROR TAX TAY TXA TYA TSX INX INY DEX DEY NOP CLC SEC CLV CLD SED";
+    
+    // blocks entered this often are compiled to bytecode when the compiler is on
+    private static final int COMPILE_THRESHOLD = 1000;
+    private volatile BlockCompiler compiler;
+    private boolean blockExit;
+    
+    /*
+     * idle loop skipping: the last block entered if it is an idle loop candidate and
+     * the registers and cycle count the last time it was entered
+     */
+    private boolean idleSkip = true;
+    private Block idleBlock;
+    private long idleCycles;
+    private long idleEnd;
+    private int idleACC;
+    private int idleX;
+    private int idleY;
+    private int idleSP;
+    private int idleFlags;
+    private long idleCyclesSkipped;
+    
+    /**
+     * A run of decoded instructions up to the next jump, branch, return or page end.
+     * The operand is the effective address for the modes that do not depend on
+     * registers or memory.
+     */
+    private static class Block {
+        static final int MAX_LENGTH = 32;
+        
+        int length;
+        boolean valid = true;
+        int entries;
+        int budget;         // most cycles the block takes before its last instruction
+        CompiledBlock compiled;
+        boolean idleLoop;   // branches back to itself and only reads RAM, ROM or $2002
+        boolean readsPPU;
+        int[] pcs = new int[MAX_LENGTH];
+        int[] nextPCs = new int[MAX_LENGTH];
+        int[] opcodes = new int[MAX_LENGTH];
+        int[] operands = new int[MAX_LENGTH];
+        boolean[] resolved = new boolean[MAX_LENGTH];
+    }
+    
+    private static class BlockPage {
+        Block[] blocks = new Block[0x100];      // by the low byte of their first instruction
+        boolean[] code = new boolean[0x100];    // bytes decoded into blocks
+        boolean empty = true;
+        
+        /**
+         * Throws away the blocks, called when one of their bytes is written.
+         */
+        void clear() {
+            if(empty) return;
+            empty = true;
+            
+            for(int i = 0; i < 0x100; i++) {
+                if(blocks[i] != null) {
+                    blocks[i].valid = false;
+                    blocks[i] = null;
+                }
+                code[i] = false;
+            }
+        }
+    }
     
     private short[] opcodeCycles;
     private short[] opcodeSizes;
     private short[] opcodeModes;
+    private short[] opcodePageCycles;
     private String[] opcodeNames;
     private String[] addressModeNames;
     
-    private int numCyclesRan;
-    private int numInstructionsRan;
+    private long numCyclesRan;
+    private long numInstructionsRan;
     private int debugCounter;
     private int debugInitialInput;
     private int[] joypadsStrobeCount = new int[2];
@@ -46,6 +137,8 @@ public class CPU {
     
     private int irqRequestType;
     private boolean irqRequested;
+    private int irqLines;
+    private int pageCrossed;
     
     public int regACC;
     public int regX;
@@ -65,6 +158,10 @@ public class CPU {
     public static final int IRQ_NMI = 1;
     public static final int IRQ_RESET = 2;
     
+    // sources that can hold the irq line, see setIRQLine
+    public static final int IRQ_SOURCE_MAPPER = 0x01;
+    public static final int IRQ_SOURCE_APU = 0x02;
+    
     private static final int ADDR_ZP = 0x00;
     private static final int ADDR_ZP_X = 0x01;
     private static final int ADDR_ZP_Y = 0x02;
@@ -83,11 +180,98 @@ public class CPU {
         this.nes = nes;
         initOpcodes();
         
-        cpuMemory = new short[CPU_MEMORY_SIZE];
+        cpuMemory = new byte[CPU_MEMORY_SIZE];
+        initMemoryMap();
         hardReset();
     }
     
     
+    /**
+     * Builds the default page table: mirrored internal RAM, I/O registers handled
+     * by the mapper and the rest of the address space backed by cpuMemory.
+     */
+    public void initMemoryMap() {
+        readPages = new byte[0x100][];
+        readOffsets = new int[0x100];
+        writePages = new byte[0x100][];
+        writeOffsets = new int[0x100];
+        blockPages = new BlockPage[0x100];
+        writeBlockPages = new BlockPage[0x100];
+        blockMemory = new IdentityHashMap<byte[], BlockPage[]>();
+        currentBlock = null;
+        
+        // 2KB internal RAM mirrored up to 0x1FFF
+        for(int i = 0; i < 0x2000; i += 0x800)
+            mapMemory(i, 0x800, cpuMemory, 0);
+        
+        // expansion area and SRAM
+        mapMemory(0x4100, 0x3F00, cpuMemory, 0x4100);
+        
+        // PRG ROM (writes go to the mapper)
+        mapReadOnly(0x8000, 0x8000, cpuMemory, 0x8000);
+    }
+    
+    
+    /**
+     * Maps length bytes starting at address to data[offset...] for reading and writing.
+     * The address and length must be multiples of 0x100.
+     */
+    public void mapMemory(int address, int length, byte[] data, int offset) {
+        BlockPage[] blocks = getBlockPages(data);
+        
+        for(int i = 0; i < length; i += 0x100) {
+            int page = (address + i) >> 8;
+            readPages[page] = data;
+            readOffsets[page] = offset + i;
+            writePages[page] = data;
+            writeOffsets[page] = offset + i;
+            blockPages[page] = getBlockPage(blocks, offset + i);
+            writeBlockPages[page] = blockPages[page];
+        }
+        
+        currentBlock = null;
+        blockExit = true;
+    }
+    
+    
+    /**
+     * Maps length bytes starting at address to data[offset...] for reading only.
+     * Writes to those pages are passed on to the memory mapper.
+     */
+    public void mapReadOnly(int address, int length, byte[] data, int offset) {
+        BlockPage[] blocks = getBlockPages(data);
+        
+        for(int i = 0; i < length; i += 0x100) {
+            int page = (address + i) >> 8;
+            readPages[page] = data;
+            readOffsets[page] = offset + i;
+            writePages[page] = null;
+            blockPages[page] = getBlockPage(blocks, offset + i);
+            writeBlockPages[page] = null;
+        }
+        
+        currentBlock = null;
+        blockExit = true;
+    }
+    
+    
+    /**
+     * Hands all reads and writes of the given pages to the memory mapper.
+     */
+    public void unmapMemory(int address, int length) {
+        for(int i = 0; i < length; i += 0x100) {
+            int page = (address + i) >> 8;
+            readPages[page] = null;
+            writePages[page] = null;
+            blockPages[page] = null;
+            writeBlockPages[page] = null;
+        }
+        
+        currentBlock = null;
+        blockExit = true;
+    }
+    
+    
     public void reset() {
         regACC = 0;
         regX = 0;
@@ -110,6 +294,8 @@ public class CPU {
     public void hardReset() {
         numCyclesRan = 0;
         numInstructionsRan = 0;
+        idleCyclesSkipped = 0;
+        idleBlock = null;
         debugCounter = 0;
         debugInitialInput = 0;
         
@@ -120,11 +306,78 @@ public class CPU {
         
         irqRequestType = 0;
         irqRequested = false;
+        irqLines = 0;
         
         reset();
     }
     
     
+    /**
+     * Registers, cycle count, pending interrupt, joypad strobe, RAM and SRAM.
+     */
+    public void saveState(ByteBuffer out) {
+        out.put((byte)regACC);
+        out.put((byte)regX);
+        out.put((byte)regY);
+        out.putShort((short)regPC);
+        out.putShort((short)regSP);
+        out.put((byte)flagCarry);
+        out.put((byte)flagZero);
+        out.put((byte)flagInterrupt);
+        out.put((byte)flagDecimal);
+        out.put((byte)flagBreak);
+        out.put((byte)flagNotUsed);
+        out.put((byte)flagOverflow);
+        out.put((byte)flagSign);
+        
+        out.putLong(numCyclesRan);
+        out.put((byte)irqRequestType);
+        out.put((byte)(irqRequested?1:0));
+        out.put((byte)irqLines);
+        
+        for(int i = 0; i < 2; i++) {
+            out.put((byte)joypadsStrobeCount[i]);
+            out.put((byte)joypadLastWrite[i]);
+        }
+        
+        out.put(cpuMemory, 0, 0x800);
+        out.put(cpuMemory, 0x6000, 0x2000);
+    }
+    
+    
+    public void loadState(ByteBuffer in) {
+        regACC = in.get() & 0xFF;
+        regX = in.get() & 0xFF;
+        regY = in.get() & 0xFF;
+        regPC = in.getShort() & 0xFFFF;
+        regSP = in.getShort() & 0xFFFF;
+        flagCarry = in.get();
+        flagZero = in.get();
+        flagInterrupt = in.get();
+        flagDecimal = in.get();
+        flagBreak = in.get();
+        flagNotUsed = in.get();
+        flagOverflow = in.get();
+        flagSign = in.get();
+        
+        numCyclesRan = in.getLong();
+        irqRequestType = in.get();
+        irqRequested = in.get() != 0;
+        irqLines = in.get();
+        
+        for(int i = 0; i < 2; i++) {
+            joypadsStrobeCount[i] = in.get();
+            joypadLastWrite[i] = in.get();
+        }
+        
+        in.get(cpuMemory, 0, 0x800);
+        in.get(cpuMemory, 0x6000, 0x2000);
+        
+        // code may have run from the old RAM
+        clearBlocks();
+    }
+    
+    
     public int getFlags() {
         int flags = 0;
         flags = flagSign;
@@ -139,6 +392,12 @@ public class CPU {
     
     
     public void processIRQ() {
+        // the irq line is level triggered, it is taken for as long as a source holds it
+        if (!irqRequested && irqLines != 0 && flagInterrupt == 0) {
+            irqRequested = true;
+            irqRequestType = IRQ_NORMAL;
+        }
+        
         if (irqRequested) {
                /* first check if interupt occured and if so,
                 * 1. push program counter and status register on to the stack
@@ -174,6 +433,7 @@ public class CPU {
                     flagInterrupt = 1;
                     flagBreak = 0;
                     regPC = read(0xFFFE) | ((read(0xFFFF) << 8)&0xFF00);
+                    numCyclesRan += 7;
                     break;
                     
                 case IRQ_NMI:
@@ -182,7 +442,10 @@ public class CPU {
                     push((short) ((regPC >> 8) & 0xFF));
                     push((short) (regPC & 0xFF));
                     push((short) temp);
+                    
+                    flagInterrupt = 1;
                     regPC = read(0xFFFA) | ((read(0xFFFB) << 8)&0xFF00);
+                    numCyclesRan += 7;
                     
                     //}
                     break;
@@ -191,6 +454,7 @@ public class CPU {
                 case IRQ_RESET:
                     //System.out.println("Reset interrupt");
                     regPC = read(0xFFFC) | ((read(0xFFFD) << 8)&0xFF00);
+                    numCyclesRan += 7;
                     
                     break;
             }
@@ -201,46 +465,89 @@ public class CPU {
     
     
     private int processAddressingMode(int addressingMode) {
+        return resolveAddress(addressingMode, fetchOperand(addressingMode));
+    }
+    
+    
+    /**
+     * Reads the operand bytes of an instruction at regPC and moves past them.
+     * Immediate mode returns the address of its operand.
+     */
+    private int fetchOperand(int addressingMode) {
+        int operand = 0;
+        
+        switch (addressingMode) {
+            case ADDR_ZP:
+            case ADDR_ZP_X:
+            case ADDR_ZP_Y:
+            case ADDR_INDIR_X:
+            case ADDR_INDIR_Y:
+            case ADDR_RELATIVE:
+                operand = read(regPC);
+                regPC++;
+                break;
+                
+            case ADDR_ABS:
+            case ADDR_ABS_X:
+            case ADDR_ABS_Y:
+            case ADDR_INDIR:
+                operand = read(regPC) | ((read(regPC+1) << 8)&0xFF00);
+                regPC++;
+                regPC++;
+                break;
+                
+            case ADDR_IMMEDIATE:
+                operand = regPC;
+                regPC++;
+                break;
+        }
+        
+        regPC &= 0xFFFF;
+        return operand;
+    }
+    
+    
+    /**
+     * Works out the effective address of an instruction from its operand.
+     * regPC must already point at the next instruction.
+     */
+    private int resolveAddress(int addressingMode, int operand) {
         int address = 0;
+        pageCrossed = 0;
         // get address location based off of addressing mode
         switch (addressingMode) {
             case ADDR_ZP:
                 // Zero page
-                address = read(regPC)&0xFF;
-                regPC++;
+                address = operand&0xFF;
                 break;
                 
             case ADDR_ZP_X:
                 // Zero page,X
-                address = (read(regPC) + regX)&0xFF;
-                regPC++;
+                address = (operand + regX)&0xFF;
                 break;
                 
             case ADDR_ZP_Y:
                 // Zero page,Y
-                address = (read(regPC) + regY)&0xFF;
-                regPC++;
+                address = (operand + regY)&0xFF;
                 break;
                 
             case ADDR_ABS:
                 // Absolute
-                address = read(regPC) | ((read(regPC+1) << 8)&0xFF00);
-                regPC++;
-                regPC++;
+                address = operand;
                 break;
                 
             case ADDR_ABS_X:
                 // Absolute,X
-                address = ((read(regPC) | ((read(regPC+1) << 8)&0xFF00)) + regX)&0xFFFF;
-                regPC++;
-                regPC++;
+                address = operand;
+                pageCrossed = ((address + regX) >> 8) - (address >> 8);
+                address = (address + regX)&0xFFFF;
                 break;
                 
             case ADDR_ABS_Y:
                 // Absolute,Y
-                address = ((read(regPC) | ((read(regPC+1) << 8)&0xFF00)) + regY)&0xFFFF;
-                regPC++;
-                regPC++;
+                address = operand;
+                pageCrossed = ((address + regY) >> 8) - (address >> 8);
+                address = (address + regY)&0xFFFF;
                 break;
                 
             case ADDR_IMPLIED:
@@ -255,33 +562,24 @@ public class CPU {
                 
             case ADDR_IMMEDIATE:
                 // Immediate
-                address = regPC;
-                regPC++;
+                address = operand;
                 break;
                 
             case ADDR_INDIR:
                 // Indirect
-                address = read(regPC) | ((read(regPC+1) << 8)&0xFF00);
-                address = read(address) | ((read(address+1) << 8)&0xFF00);
-                
-                regPC++;
-                regPC++;
+                address = read(operand) | ((read(operand+1) << 8)&0xFF00);
                 break;
                 
             case ADDR_INDIR_X:
                 // Indirect,X (pre-indexed)
-                address = (regX + read(regPC))&0xFF;
-                regPC++;
-                regPC &= 0xFFFF;
+                address = (regX + operand)&0xFF;
                 address = (read(address) | ((read(address+1) << 8)&0xFF00))&0xFFFF;
                 break;
                 
             case ADDR_INDIR_Y:
                 // Indirect,Y (post-indexed)
-                address = read(regPC);
-                regPC++;
-                regPC &= 0xFFFF;
-                address = read(address) | ((read(address+1) << 8)&0xFF00);
+                address = read(operand) | ((read(operand+1) << 8)&0xFF00);
+                pageCrossed = ((address + regY) >> 8) - (address >> 8);
                 address += regY;
                 break;
                 
@@ -293,20 +591,15 @@ public class CPU {
                      * jump forward, otherwise jump backwards 0xFF (256) to go
                      * backwards in memory
                      */
-                address = read(regPC);
-                regPC++;
-                regPC &= 0xFFFF;
-                
-                if(address<0x80){
-                    address = regPC + address;
+                if(operand<0x80){
+                    address = regPC + operand;
                 }else{
-                    address = regPC + (address - 0x100);
+                    address = regPC + (operand - 0x100);
                 }
                 break;
         }
         
         address &= 0xFFFF;
-        regPC &= 0xFFFF;
         return address;
     }
     
@@ -315,29 +608,56 @@ public class CPU {
         
         int opcode;
         int addressingMode;
-        int cycles;
-        int cyclesToWait = 0;
-        int size;
         int address = 0;
-        int temp = 0;
+        long startCycles = numCyclesRan;
         regPC &= 0xFFFF;
         
         processIRQ();
         
+        Block block = blockCache?nextBlock():null;
         
-        //read next instruction from memory map
-        opcode = read(regPC);
+        if(block != null) {
+            // already decoded, zero page, absolute, immediate and relative operands are resolved
+            int index = blockIndex++;
+            opcode = block.opcodes[index];
+            addressingMode = opcodeModes[opcode];
+            regPC = block.nextPCs[index];
+            
+            if(block.resolved[index]) {
+                address = block.operands[index];
+                pageCrossed = 0;
+            } else {
+                address = resolveAddress(addressingMode, block.operands[index]);
+            }
+        } else {
+            //read next instruction from memory map
+            opcode = read(regPC);
+            
+            addressingMode = opcodeModes[opcode];
+            
+            regPC++;
+            regPC &= 0xFFFF;
+            
+            address = processAddressingMode(addressingMode);
+        }
         
-        addressingMode = opcodeModes[opcode];
-        cycles = opcodeCycles[opcode];
-        size = opcodeSizes[opcode];
+        // charge the cycles up front so register accesses see the time the instruction ends
+        numCyclesRan += opcodeCycles[opcode] + pageCrossed*opcodePageCycles[opcode];
         
-        regPC++;
-        regPC &= 0xFFFF;
+        execute(opcode, addressingMode, address);
+        
+        
+        if(debugCounter > 0)
+            debugCounter--;
         
-        address = processAddressingMode(addressingMode);
+        numInstructionsRan++;
         
+        return (int)(numCyclesRan - startCycles);
         
+    }
+    
+    
+    private void execute(int opcode, int addressingMode, int address) {
         
         switch (opcode) {
             
@@ -349,17 +669,7 @@ public class CPU {
             case 0x79:
             case 0x61:
             case 0x71:
-                    /* ADC
-                     * Adds value in accumulator A with the value in the address specified. If there is a carry, the flag should be set.
-                     */
-                temp = read(address) + regACC + flagCarry;
-                // overflow if you add two positive numbers (or subtract two negative numbers) and the result changes the MSB, overflow
-                // (cannot overflow if you add a positive number and a negative number together)
-                flagOverflow = ((!(((regACC ^ read(address)) & 0x80) != 0) && (((regACC ^ temp) & 0x80)) != 0) ? 1 : 0);
-                flagCarry = (temp > 0xFF) ? 1 : 0;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                regACC = temp & 0xFF;
+                adc(addressingMode, address);
                 break;
                 
             case 0x29:
@@ -370,13 +680,7 @@ public class CPU {
             case 0x39:
             case 0x21:
             case 0x31:
-                    /* AND
-                     * ANDs the value in the accumulator with the value in the address specified.
-                     */
-                temp = read(address) & regACC;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                regACC = temp & 0xFF;
+                and(addressingMode, address);
                 break;
                 
             case 0x0A:
@@ -384,138 +688,48 @@ public class CPU {
             case 0x16:
             case 0x0E:
             case 0x1E:
-                    /* ASL
-                     * Arithmatically shifts the bits in the accumulator to the left.
-                     */
-                
-                temp = (addressingMode == ADDR_ACC) ? regACC : read(address);
-                flagCarry = ((temp & 0x80) >> 7) & 1; //Loads the MSB into the carry flag
-                temp = (temp << 1) & 0xFE;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                if (addressingMode == ADDR_ACC) {
-                    regACC = temp;
-                } else {
-                    write(address, (short) temp);
-                }
+                asl(addressingMode, address);
                 break;
                 
             case 0x24:
             case 0x2C:
-                    /* BIT
-                     * This is a bit test. It is the AND operation, but the contents are not stored in the accumulator.
-                     */
-                
-                temp = read(address);
-                flagSign = (temp >> 7) & 1;
-                flagOverflow = (temp >> 6) & 1;
-                temp &= regACC;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                
+                bit(addressingMode, address);
                 break;
                 
             case 0x30:
-                    /* BMI
-                     *Branches only if the negative flag is set to 1.
-                     */
-                if (flagSign != 0) {
-                    regPC = address;
-                }
-                
+                bmi(addressingMode, address);
                 break;
+                
             case 0x10:
-                    /* BPL
-                     * Branches only if the negative flag is a 0.
-                     */
-                if (flagSign == 0) {
-                    regPC = address;
-                }
+                bpl(addressingMode, address);
                 break;
                 
-                
-                
             case 0x50:
-                    /* BVC
-                     *Branches only if the overflow flag is set to 0.
-                     */
-                if (flagOverflow == 0) {
-                    regPC = address;
-                }
+                bvc(addressingMode, address);
                 break;
                 
             case 0x70:
-                    /* BVS
-                     *Branches only if the negative flag is set to 1.
-                     */
-                if (flagOverflow != 0) {
-                    regPC = address;
-                }
+                bvs(addressingMode, address);
                 break;
                 
             case 0x90:
-                    /* BCC
-                     *Branches only if the carry flag is set to 0.
-                     */
-                if (flagCarry == 0) {
-                    regPC = address;
-                }
+                bcc(addressingMode, address);
                 break;
                 
             case 0xB0:
-                    /* BCS
-                     *Branches only if the carry flag is set to 1.
-                     */
-                if (flagCarry != 0) {
-                    regPC = address;
-                }
+                bcs(addressingMode, address);
                 break;
                 
             case 0xD0:
-                    /* BNE
-                     * Branch on not zero.
-                     */
-                if (flagZero == 0) {
-                    regPC = address;
-                }
+                bne(addressingMode, address);
                 break;
                 
             case 0xF0:
-                    /* BEQ
-                     * Branch on equal.
-                     */
-                if (flagZero != 0) {
-                    regPC = address;
-                }
-                
+                beq(addressingMode, address);
                 break;
                 
             case 0x00:
-                    /* BRK
-                     * BRK causes a non-maskable interrupt and increments the program counter by one.
-                     * Therefore an RTI will go to the address of the BRK +2
-                     * so that BRK may be used to replace a two-short instruction for debugging and the subsequent RTI will be correct.
-                     */
-                regPC++;
-                push((short)((regPC>>8)&0xFF));
-                push((short)(regPC&0xFF));
-                flagBreak = 1;
-                
-                temp = 0;
-                temp = flagSign | (temp << 1);
-                temp = flagOverflow | (temp << 1);
-                temp = flagNotUsed | (temp << 1);
-                temp = flagBreak | (temp << 1);
-                temp = flagDecimal | (temp << 1);
-                temp = flagInterrupt | (temp << 1);
-                temp = flagZero | (temp << 1);
-                temp = flagCarry | (temp << 1);
-                
-                push((short) temp);
-                
-                flagInterrupt = 1;
-                regPC = read(0xFFFE) | ((read(0xFFFF) << 8)&0xFF00);
-                
-                //System.out.println("BRK regPC " + Integer.toHexString(regPC));
+                brk(addressingMode, address);
                 break;
                 
             case 0xC9:
@@ -526,59 +740,26 @@ public class CPU {
             case 0xD9:
             case 0xC1:
             case 0xD1:
-                    /* CMP
-                     * This subtracts the value of the accumulator and the value in the address specified.
-                     * It does NOT save the result into A, but it will set or clear flags.
-                     */
-                temp = regACC - read(address);
-                flagCarry = (temp >= 0)? 1 : 0;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+                cmp(addressingMode, address);
                 break;
                 
             case 0xE0:
             case 0xE4:
             case 0xEC:
-                    /* CPX
-                     * This subtracts the value of the X register and the value in the address specified.
-                     * It does NOT save the result into X, but it will set or clear flags.
-                     */
-                temp = regX - read(address);
-                flagCarry = (temp >= 0)? 1 : 0;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                
-                
+                cpx(addressingMode, address);
                 break;
                 
             case 0xC0:
             case 0xC4:
             case 0xCC:
-                    /* CPY
-                     * This subtracts the value of the Y register and the value in the address specified.
-                     * It does NOT save the result into Y, but it will set or clear flags.
-                     */
-                temp = regY - read(address);
-                flagCarry = (temp >= 0)? 1 : 0;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                
-                
+                cpy(addressingMode, address);
                 break;
                 
             case 0xC6:
             case 0xD6:
             case 0xCE:
             case 0xDE:
-                    /* DEC
-                     * Subtracts the value in memory by 1
-                     */
-                temp = (read(address) - 1) & 0xFF;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                write(address, (short) temp);
-                
-                
+                dec(addressingMode, address);
                 break;
                 
             case 0x49:
@@ -589,114 +770,51 @@ public class CPU {
             case 0x59:
             case 0x41:
             case 0x51:
-                    /* EOR
-                     * Performs the XOR operation on A and the value in the specified address.
-                     * The result is stored into A.
-                     */
-                temp = (read(address) ^ regACC) & 0xFF;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                regACC = temp;
-                
+                eor(addressingMode, address);
                 break;
                 
             case 0x18:
-                    /* CLC
-                     * Clears carry flag to 0
-                     */
-                flagCarry = 0;
-                
-                
+                clc(addressingMode, address);
                 break;
                 
             case 0x38:
-                    /* SEC
-                     * Sets carry flag to 1
-                     */
-                flagCarry = 1;
-                
-                
+                sec(addressingMode, address);
                 break;
                 
             case 0x58:
-                    /* CLI
-                     * Clears interrupt flag to 0
-                     */
-                flagInterrupt = 0;
-                
-                
+                cli(addressingMode, address);
                 break;
                 
             case 0x78:
-                    /* SEI
-                     * Sets interrupt flag to 1
-                     */
-                flagInterrupt = 1;
-                
-                
+                sei(addressingMode, address);
                 break;
                 
             case 0xB8:
-                    /* CLV
-                     * Clears overflow flag to 0
-                     */
-                flagOverflow = 0;
-                
+                clv(addressingMode, address);
                 break;
                 
             case 0xD8:
-                    /* CLD
-                     * Clears decimal flag to 0
-                     */
-                flagDecimal = 0;
-                
-                
+                cld(addressingMode, address);
                 break;
                 
             case 0xF8:
-                    /* SED
-                     * Sets decimal flag to 1
-                     */
-                flagDecimal = 1;
-                
-                
+                sed(addressingMode, address);
                 break;
                 
-                
             case 0xE6:
             case 0xF6:
             case 0xEE:
             case 0xFE:
-                    /* INC
-                     * Increments the value in accumulator A by 1
-                     */
-                
-                temp = (read(address) + 1) & 0xFF;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                write(address, (short) temp);
-                
+                inc(addressingMode, address);
                 break;
                 
             case 0x4C:
             case 0x6C:
-                    /* JMP
-                     * The program jumps to the location specified. This function changes the
-                     * Program Counter to where the jump address specifies.
-                     */
-                regPC = address&0xFFFF;
-                
+                jmp(addressingMode, address);
                 break;
                 
             case 0x20:
-                    /* JSR
-                     * The program jumps to the location specified. This function changes the
-                     * Program Counter to where the jump address specifies.
-                     */
-                push((short) (((regPC-1) >> 8) & 0xFF)); // push msb of address
-                push((short) ((regPC-1) & 0xFF));      // push lsb of address
-                
-                regPC = address;
+                jsr(addressingMode, address);
                 break;
                 
             case 0xA9:
@@ -707,14 +825,7 @@ public class CPU {
             case 0xB9:
             case 0xA1:
             case 0xB1:
-                    /* LDA
-                     * Loads accumulator A with the value found in the given address.
-                     */
-                temp = read(address);
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                regACC = temp;
-                
+                lda(addressingMode, address);
                 break;
                 
             case 0xA2:
@@ -722,14 +833,7 @@ public class CPU {
             case 0xB6:
             case 0xAE:
             case 0xBE:
-                    /* LDX
-                     * Loads register X with the value found in the given address.
-                     */
-                temp = read(address);
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                regX = temp;
-                
+                ldx(addressingMode, address);
                 break;
                 
             case 0xA0:
@@ -737,14 +841,7 @@ public class CPU {
             case 0xB4:
             case 0xAC:
             case 0xBC:
-                    /* LDY
-                     * Loads register Y with the value foudn in the given address.
-                     */
-                temp = read(address);
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                regY = temp;
-                
+                ldy(addressingMode, address);
                 break;
                 
             case 0x4A:
@@ -752,30 +849,11 @@ public class CPU {
             case 0x56:
             case 0x4E:
             case 0x5E:
-                    /* LSR
-                     * Shifts the contents of A to the right once.
-                     */
-                temp = (addressingMode == ADDR_ACC) ? regACC : read(address);
-                
-                flagCarry = (temp & 1); //Loads the LSB into the carry flag
-                temp = (temp >> 1) & 0x7F;  // shift right
-                flagSign = 0;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                
-                if (addressingMode == ADDR_ACC) {
-                    regACC = temp;
-                } else {
-                    write(address, (short) temp);
-                }
-                
+                lsr(addressingMode, address);
                 break;
                 
             case 0xEA:
-                    /* NOP
-                     * No Operation, just uses a CPU cycle.
-                     */
-                
-                
+                nop(addressingMode, address);
                 break;
                 
             case 0x09:
@@ -786,102 +864,39 @@ public class CPU {
             case 0x11:
             case 0x01:
             case 0x05:
-                    /* ORA
-                     *Logical Inclusive OR. Bitwise OR with A and a source. The result will be
-                     *false only if both bits are 0; otherwise it will be 1.
-                     */
-                temp = (regACC | read(address)) & 0xFF;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                regACC = temp;
-                
-                
+                ora(addressingMode, address);
                 break;
                 
             case 0xAA:
-                    /* TAX
-                     * Transfers the contents from A to X
-                     */
-                regX = regACC;
-                flagSign = (regACC >> 7) & 1;
-                flagZero = ((regACC & 0xFF) == 0) ? 1 : 0;
-                
+                tax(addressingMode, address);
                 break;
                 
             case 0x8A:
-                    /* TXA
-                     * Transfers the contents from X to A
-                     */
-                regACC = regX;
-                flagSign = (regACC >> 7) & 1;
-                flagZero = ((regACC & 0xFF) == 0) ? 1 : 0;
-                
-                
+                txa(addressingMode, address);
                 break;
                 
             case 0xCA:
-                    /* DEX
-                     * Decrements the value in register X by 1
-                     */
-                temp = (regX - 1) & 0xFF;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                regX = temp;
-                
+                dex(addressingMode, address);
                 break;
                 
-                
             case 0xE8:
-                    /* INX
-                     * increments the value in register X by 1
-                     */
-                temp = (regX + 1) & 0xFF;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                regX = temp;
-                
+                inx(addressingMode, address);
                 break;
                 
             case 0xA8:
-                    /* TAY
-                     * Transfers the contents from A to Y
-                     */
-                regY = regACC;
-                flagSign = (regACC >> 7) & 1;
-                flagZero = ((regACC & 0xFF) == 0) ? 1 : 0;
-                
+                tay(addressingMode, address);
                 break;
                 
             case 0x98:
-                    /* TYA
-                     * Transfers the contents from Y to A
-                     */
-                regACC = regY;
-                flagSign = (regACC >> 7) & 1;
-                flagZero = ((regACC & 0xFF) == 0) ? 1 : 0;
-                
+                tya(addressingMode, address);
                 break;
                 
             case 0x88:
-                    /* DEY
-                     * Decrements the value in register Y by 1
-                     */
-                temp = (regY - 1) & 0xFF;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                regY = temp;
-                
+                dey(addressingMode, address);
                 break;
                 
             case 0xC8:
-                    /* INY
-                     * Increments the value in register Y by 1
-                     */
-                temp = (regY + 1) & 0xFF;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                regY = temp;
-                
+                iny(addressingMode, address);
                 break;
                 
             case 0x2A:
@@ -889,25 +904,7 @@ public class CPU {
             case 0x36:
             case 0x2E:
             case 0x3E:
-                    /* ROL
-                     * Shifts the contents in accumulator A to the left. The rightmost bit (LSB) is filled
-                     * with the value of the carry flag and the leftmost bit (MSB) is sent to the carry flag bit
-                     */
-                
-                temp = (addressingMode == ADDR_ACC) ? regACC : read(address);
-                
-                int ncarry = (temp >> 7) & 1;
-                temp = ((temp << 1) & 0xFE) | flagCarry;
-                flagCarry = ncarry;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                
-                if (addressingMode == ADDR_ACC) {
-                    regACC = temp;
-                } else {
-                    write(address, (short) temp);
-                }
-                
+                rol(addressingMode, address);
                 break;
                 
             case 0x6A:
@@ -915,61 +912,15 @@ public class CPU {
             case 0x76:
             case 0x6E:
             case 0x7E:
-                    /* ROR
-                     * Shifts the contents in accumulator A to the right. The leftmost bit (LSB) is filled
-                     * with the value of the carry flag and the rightmost bit (MSB) is sent to the carry flag bit
-                     */
-                /*
-                temp = (regACC) & 1;
-                regACC = ((regACC >> 1) & 0x7F) | (flagCarry << 7);
-                flagCarry = temp;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                 */
-                temp = (addressingMode == ADDR_ACC) ? regACC : read(address);
-                int oldTemp = temp;
-                int lcarry = temp & 1;
-                temp = ((temp >> 1) & 0x7F) | ((flagCarry<<7)&0xFF);
-                flagCarry = lcarry;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                
-                if (addressingMode == ADDR_ACC) {
-                    regACC = temp;
-                } else {
-                    write(address, (short) temp);
-                }
-                
-                
+                ror(addressingMode, address);
                 break;
                 
             case 0x40:
-                    /* RTI
-                     * After the interrupt code is executed, this
-                     * returns to where the program was left restoring the PC and the
-                     * flags that were pushed on the stack when the interrupt began.
-                     */
-                
-                temp = pull();
-                flagCarry = temp & 1;
-                flagZero = (temp >> 1) & 1;
-                flagInterrupt = (temp >> 2) & 1;
-                flagDecimal = (temp >> 3) & 1;
-                flagBreak = (temp >> 4) & 1;
-                flagNotUsed = (temp >> 5) & 1;
-                flagOverflow = (temp >> 6) & 1;
-                flagSign = (temp >> 7) & 1;
-                
-                regPC = (pull()&0xFF) | ((pull() << 8)&0xFF00);
+                rti(addressingMode, address);
                 break;
                 
             case 0x60:
-                    /* RTS
-                     * This returns from a subroutine to the next
-                     * instruction to where it was called, pulling PC from the stack.
-                     */
-                regPC = ((pull())&0xFF) | ((pull() << 8)&0xFF00);
-                regPC++;
+                rts(addressingMode, address);
                 break;
                 
             case 0xE9:
@@ -980,18 +931,7 @@ public class CPU {
             case 0xF9:
             case 0xE1:
             case 0xF1:
-                    /* SBC
-                     * Subtracts the value of the accumulator and the stored value in the given address.
-                     * This operation can change the value in the carry flag.
-                     */
-                temp = regACC - read(address) - (1 - flagCarry);
-                // overflow if you add two positive numbers (or subtract two negative numbers) and the result changes the MSB, overflow
-                // (cannot overflow if you add a positive number and a negative number together)
-                flagOverflow = (((((regACC ^ read(address)) & 0x80) != 0) && (((regACC ^ temp) & 0x80)) != 0) ? 1 : 0);
-                flagCarry = (temp < 0) ? 0 : 1;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                regACC = temp & 0xFF;
+                sbc(addressingMode, address);
                 break;
                 
             case 0x85:
@@ -1001,132 +941,1213 @@ public class CPU {
             case 0x99:
             case 0x81:
             case 0x91:
-                    /* STA
-                     * Stores the value of the accumulator in the specified address.
-                     */
-                write(address, (short) regACC);
-                
+                sta(addressingMode, address);
                 break;
                 
             case 0x9A:
-                    /* TXS
-                     * Transfer register X to the stack pointer
-                     */
-                regSP = regX+0x0100;
-                
+                txs(addressingMode, address);
                 break;
                 
             case 0xBA:
-                    /* TSX
-                     * Transfers the contents of where the stack pointer points into register X.
-                     */
-                temp = regSP-0x0100;
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                regX = temp;
+                tsx(addressingMode, address);
                 break;
                 
             case 0x48:
-                    /* PHA
-                     * Pushes the contents of the accumulator onto the stack.
-                     */
-                push((short) regACC);
-                
+                pha(addressingMode, address);
                 break;
                 
             case 0x68:
-                    /* PLA
-                     * Pulls the contents of the stack pointer in the accumulator.
-                     */
-                temp = pull();
-                flagSign = (temp >> 7) & 1;
-                flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
-                regACC = temp;
+                pla(addressingMode, address);
+                break;
                 
+            case 0x08:
+                php(addressingMode, address);
                 break;
                 
+            case 0x28:
+                plp(addressingMode, address);
+                break;
                 
-            case 0x08:
-                    /* PHP
-                     * Pushes the contents of the flag register onto the stack.
-                     */
-                flagBreak = 1;
-                temp = 0;
-                temp = flagSign | (temp << 1);
-                temp = flagOverflow | (temp << 1);
-                temp = flagNotUsed | (temp << 1);
-                temp = flagBreak | (temp << 1);
-                temp = flagDecimal | (temp << 1);
-                temp = flagInterrupt | (temp << 1);
-                temp = flagZero | (temp << 1);
-                temp = flagCarry | (temp << 1);
+            case 0x86:
+            case 0x96:
+            case 0x8E:
+                stx(addressingMode, address);
+                break;
+                
+            case 0x84:
+            case 0x94:
+            case 0x8C:
+                sty(addressingMode, address);
+                break;
                 
-                push((short) temp);
+            default:
+                System.out.println("ILLEGAL OPCODE! " + Integer.toHexString(opcode));
+                debugCounter = 0;
+                break;
+        }
+    }
+    
+    
+    /*
+     * instructions, public so blocks compiled by BlockCompiler can call them
+     */
+    
+    /* ADC
+     * Adds value in accumulator A with the value in the address specified. If there is a carry, the flag should be set.
+     */
+    public void adc(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = read(address) + regACC + flagCarry;
+        // overflow if you add two positive numbers (or subtract two negative numbers) and the result changes the MSB, overflow
+        // (cannot overflow if you add a positive number and a negative number together)
+        flagOverflow = ((!(((regACC ^ read(address)) & 0x80) != 0) && (((regACC ^ temp) & 0x80)) != 0) ? 1 : 0);
+        flagCarry = (temp > 0xFF) ? 1 : 0;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        regACC = temp & 0xFF;
+    }
+    
+    
+    /* AND
+     * ANDs the value in the accumulator with the value in the address specified.
+     */
+    public void and(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = read(address) & regACC;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        regACC = temp & 0xFF;
+    }
+    
+    
+    /* ASL
+     * Arithmatically shifts the bits in the accumulator to the left.
+     */
+    public void asl(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = (addressingMode == ADDR_ACC) ? regACC : read(address);
+        flagCarry = ((temp & 0x80) >> 7) & 1; //Loads the MSB into the carry flag
+        temp = (temp << 1) & 0xFE;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        if (addressingMode == ADDR_ACC) {
+            regACC = temp;
+        } else {
+            write(address, (short) temp);
+        }
+    }
+    
+    
+    /* BIT
+     * This is a bit test. It is the AND operation, but the contents are not stored in the accumulator.
+     */
+    public void bit(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = read(address);
+        flagSign = (temp >> 7) & 1;
+        flagOverflow = (temp >> 6) & 1;
+        temp &= regACC;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+    }
+    
+    
+    /* BMI
+     *Branches only if the negative flag is set to 1.
+     */
+    public void bmi(int addressingMode, int address) {
+        if (flagSign != 0) {
+            branch(address);
+        }
+    }
+    
+    
+    /* BPL
+     * Branches only if the negative flag is a 0.
+     */
+    public void bpl(int addressingMode, int address) {
+        if (flagSign == 0) {
+            branch(address);
+        }
+    }
+    
+    
+    /* BVC
+     *Branches only if the overflow flag is set to 0.
+     */
+    public void bvc(int addressingMode, int address) {
+        if (flagOverflow == 0) {
+            branch(address);
+        }
+    }
+    
+    
+    /* BVS
+     *Branches only if the negative flag is set to 1.
+     */
+    public void bvs(int addressingMode, int address) {
+        if (flagOverflow != 0) {
+            branch(address);
+        }
+    }
+    
+    
+    /* BCC
+     *Branches only if the carry flag is set to 0.
+     */
+    public void bcc(int addressingMode, int address) {
+        if (flagCarry == 0) {
+            branch(address);
+        }
+    }
+    
+    
+    /* BCS
+     *Branches only if the carry flag is set to 1.
+     */
+    public void bcs(int addressingMode, int address) {
+        if (flagCarry != 0) {
+            branch(address);
+        }
+    }
+    
+    
+    /* BNE
+     * Branch on not zero.
+     */
+    public void bne(int addressingMode, int address) {
+        if (flagZero == 0) {
+            branch(address);
+        }
+    }
+    
+    
+    /* BEQ
+     * Branch on equal.
+     */
+    public void beq(int addressingMode, int address) {
+        if (flagZero != 0) {
+            branch(address);
+        }
+    }
+    
+    
+    /* BRK
+     * BRK causes a non-maskable interrupt and increments the program counter by one.
+     * Therefore an RTI will go to the address of the BRK +2
+     * so that BRK may be used to replace a two-short instruction for debugging and the subsequent RTI will be correct.
+     */
+    public void brk(int addressingMode, int address) {
+        int temp = 0;
+        
+        regPC++;
+        push((short)((regPC>>8)&0xFF));
+        push((short)(regPC&0xFF));
+        flagBreak = 1;
+        
+        temp = 0;
+        temp = flagSign | (temp << 1);
+        temp = flagOverflow | (temp << 1);
+        temp = flagNotUsed | (temp << 1);
+        temp = flagBreak | (temp << 1);
+        temp = flagDecimal | (temp << 1);
+        temp = flagInterrupt | (temp << 1);
+        temp = flagZero | (temp << 1);
+        temp = flagCarry | (temp << 1);
+        
+        push((short) temp);
+        
+        flagInterrupt = 1;
+        regPC = read(0xFFFE) | ((read(0xFFFF) << 8)&0xFF00);
+        
+        //System.out.println("BRK regPC " + Integer.toHexString(regPC));
+    }
+    
+    
+    /* CMP
+     * This subtracts the value of the accumulator and the value in the address specified.
+     * It does NOT save the result into A, but it will set or clear flags.
+     */
+    public void cmp(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = regACC - read(address);
+        flagCarry = (temp >= 0)? 1 : 0;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+    }
+    
+    
+    /* CPX
+     * This subtracts the value of the X register and the value in the address specified.
+     * It does NOT save the result into X, but it will set or clear flags.
+     */
+    public void cpx(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = regX - read(address);
+        flagCarry = (temp >= 0)? 1 : 0;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+    }
+    
+    
+    /* CPY
+     * This subtracts the value of the Y register and the value in the address specified.
+     * It does NOT save the result into Y, but it will set or clear flags.
+     */
+    public void cpy(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = regY - read(address);
+        flagCarry = (temp >= 0)? 1 : 0;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+    }
+    
+    
+    /* DEC
+     * Subtracts the value in memory by 1
+     */
+    public void dec(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = (read(address) - 1) & 0xFF;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        write(address, (short) temp);
+    }
+    
+    
+    /* EOR
+     * Performs the XOR operation on A and the value in the specified address.
+     * The result is stored into A.
+     */
+    public void eor(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = (read(address) ^ regACC) & 0xFF;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        regACC = temp;
+    }
+    
+    
+    /* CLC
+     * Clears carry flag to 0
+     */
+    public void clc(int addressingMode, int address) {
+        flagCarry = 0;
+    }
+    
+    
+    /* SEC
+     * Sets carry flag to 1
+     */
+    public void sec(int addressingMode, int address) {
+        flagCarry = 1;
+    }
+    
+    
+    /* CLI
+     * Clears interrupt flag to 0
+     */
+    public void cli(int addressingMode, int address) {
+        flagInterrupt = 0;
+        checkIRQLine();
+    }
+    
+    
+    /* SEI
+     * Sets interrupt flag to 1
+     */
+    public void sei(int addressingMode, int address) {
+        flagInterrupt = 1;
+    }
+    
+    
+    /* CLV
+     * Clears overflow flag to 0
+     */
+    public void clv(int addressingMode, int address) {
+        flagOverflow = 0;
+    }
+    
+    
+    /* CLD
+     * Clears decimal flag to 0
+     */
+    public void cld(int addressingMode, int address) {
+        flagDecimal = 0;
+    }
+    
+    
+    /* SED
+     * Sets decimal flag to 1
+     */
+    public void sed(int addressingMode, int address) {
+        flagDecimal = 1;
+    }
+    
+    
+    /* INC
+     * Increments the value in accumulator A by 1
+     */
+    public void inc(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = (read(address) + 1) & 0xFF;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        write(address, (short) temp);
+    }
+    
+    
+    /* JMP
+     * The program jumps to the location specified. This function changes the
+     * Program Counter to where the jump address specifies.
+     */
+    public void jmp(int addressingMode, int address) {
+        regPC = address&0xFFFF;
+    }
+    
+    
+    /* JSR
+     * The program jumps to the location specified. This function changes the
+     * Program Counter to where the jump address specifies.
+     */
+    public void jsr(int addressingMode, int address) {
+        push((short) (((regPC-1) >> 8) & 0xFF)); // push msb of address
+        push((short) ((regPC-1) & 0xFF));      // push lsb of address
+        
+        regPC = address;
+    }
+    
+    
+    /* LDA
+     * Loads accumulator A with the value found in the given address.
+     */
+    public void lda(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = read(address);
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        regACC = temp;
+    }
+    
+    
+    /* LDX
+     * Loads register X with the value found in the given address.
+     */
+    public void ldx(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = read(address);
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        regX = temp;
+    }
+    
+    
+    /* LDY
+     * Loads register Y with the value foudn in the given address.
+     */
+    public void ldy(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = read(address);
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        regY = temp;
+    }
+    
+    
+    /* LSR
+     * Shifts the contents of A to the right once.
+     */
+    public void lsr(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = (addressingMode == ADDR_ACC) ? regACC : read(address);
+        
+        flagCarry = (temp & 1); //Loads the LSB into the carry flag
+        temp = (temp >> 1) & 0x7F;  // shift right
+        flagSign = 0;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        
+        if (addressingMode == ADDR_ACC) {
+            regACC = temp;
+        } else {
+            write(address, (short) temp);
+        }
+    }
+    
+    
+    /* NOP
+     * No Operation, just uses a CPU cycle.
+     */
+    public void nop(int addressingMode, int address) {
+    }
+    
+    
+    /* ORA
+     *Logical Inclusive OR. Bitwise OR with A and a source. The result will be
+     *false only if both bits are 0; otherwise it will be 1.
+     */
+    public void ora(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = (regACC | read(address)) & 0xFF;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        regACC = temp;
+    }
+    
+    
+    /* TAX
+     * Transfers the contents from A to X
+     */
+    public void tax(int addressingMode, int address) {
+        regX = regACC;
+        flagSign = (regACC >> 7) & 1;
+        flagZero = ((regACC & 0xFF) == 0) ? 1 : 0;
+    }
+    
+    
+    /* TXA
+     * Transfers the contents from X to A
+     */
+    public void txa(int addressingMode, int address) {
+        regACC = regX;
+        flagSign = (regACC >> 7) & 1;
+        flagZero = ((regACC & 0xFF) == 0) ? 1 : 0;
+    }
+    
+    
+    /* DEX
+     * Decrements the value in register X by 1
+     */
+    public void dex(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = (regX - 1) & 0xFF;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        regX = temp;
+    }
+    
+    
+    /* INX
+     * increments the value in register X by 1
+     */
+    public void inx(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = (regX + 1) & 0xFF;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        regX = temp;
+    }
+    
+    
+    /* TAY
+     * Transfers the contents from A to Y
+     */
+    public void tay(int addressingMode, int address) {
+        regY = regACC;
+        flagSign = (regACC >> 7) & 1;
+        flagZero = ((regACC & 0xFF) == 0) ? 1 : 0;
+    }
+    
+    
+    /* TYA
+     * Transfers the contents from Y to A
+     */
+    public void tya(int addressingMode, int address) {
+        regACC = regY;
+        flagSign = (regACC >> 7) & 1;
+        flagZero = ((regACC & 0xFF) == 0) ? 1 : 0;
+    }
+    
+    
+    /* DEY
+     * Decrements the value in register Y by 1
+     */
+    public void dey(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = (regY - 1) & 0xFF;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        regY = temp;
+    }
+    
+    
+    /* INY
+     * Increments the value in register Y by 1
+     */
+    public void iny(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = (regY + 1) & 0xFF;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        regY = temp;
+    }
+    
+    
+    /* ROL
+     * Shifts the contents in accumulator A to the left. The rightmost bit (LSB) is filled
+     * with the value of the carry flag and the leftmost bit (MSB) is sent to the carry flag bit
+     */
+    public void rol(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = (addressingMode == ADDR_ACC) ? regACC : read(address);
+        
+        int ncarry = (temp >> 7) & 1;
+        temp = ((temp << 1) & 0xFE) | flagCarry;
+        flagCarry = ncarry;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        
+        if (addressingMode == ADDR_ACC) {
+            regACC = temp;
+        } else {
+            write(address, (short) temp);
+        }
+    }
+    
+    
+    /* ROR
+     * Shifts the contents in accumulator A to the right. The leftmost bit (LSB) is filled
+     * with the value of the carry flag and the rightmost bit (MSB) is sent to the carry flag bit
+     */
+    public void ror(int addressingMode, int address) {
+        int temp = 0;
+        
+        /*
+        temp = (regACC) & 1;
+        regACC = ((regACC >> 1) & 0x7F) | (flagCarry << 7);
+        flagCarry = temp;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+         */
+        temp = (addressingMode == ADDR_ACC) ? regACC : read(address);
+        int oldTemp = temp;
+        int lcarry = temp & 1;
+        temp = ((temp >> 1) & 0x7F) | ((flagCarry<<7)&0xFF);
+        flagCarry = lcarry;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        
+        if (addressingMode == ADDR_ACC) {
+            regACC = temp;
+        } else {
+            write(address, (short) temp);
+        }
+    }
+    
+    
+    /* RTI
+     * After the interrupt code is executed, this
+     * returns to where the program was left restoring the PC and the
+     * flags that were pushed on the stack when the interrupt began.
+     */
+    public void rti(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = pull();
+        flagCarry = temp & 1;
+        flagZero = (temp >> 1) & 1;
+        flagInterrupt = (temp >> 2) & 1;
+        flagDecimal = (temp >> 3) & 1;
+        flagBreak = (temp >> 4) & 1;
+        flagNotUsed = (temp >> 5) & 1;
+        flagOverflow = (temp >> 6) & 1;
+        flagSign = (temp >> 7) & 1;
+        checkIRQLine();
+        
+        regPC = (pull()&0xFF) | ((pull() << 8)&0xFF00);
+    }
+    
+    
+    /* RTS
+     * This returns from a subroutine to the next
+     * instruction to where it was called, pulling PC from the stack.
+     */
+    public void rts(int addressingMode, int address) {
+        regPC = ((pull())&0xFF) | ((pull() << 8)&0xFF00);
+        regPC++;
+    }
+    
+    
+    /* SBC
+     * Subtracts the value of the accumulator and the stored value in the given address.
+     * This operation can change the value in the carry flag.
+     */
+    public void sbc(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = regACC - read(address) - (1 - flagCarry);
+        // overflow if you add two positive numbers (or subtract two negative numbers) and the result changes the MSB, overflow
+        // (cannot overflow if you add a positive number and a negative number together)
+        flagOverflow = (((((regACC ^ read(address)) & 0x80) != 0) && (((regACC ^ temp) & 0x80)) != 0) ? 1 : 0);
+        flagCarry = (temp < 0) ? 0 : 1;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        regACC = temp & 0xFF;
+    }
+    
+    
+    /* STA
+     * Stores the value of the accumulator in the specified address.
+     */
+    public void sta(int addressingMode, int address) {
+        write(address, (short) regACC);
+    }
+    
+    
+    /* TXS
+     * Transfer register X to the stack pointer
+     */
+    public void txs(int addressingMode, int address) {
+        regSP = regX+0x0100;
+    }
+    
+    
+    /* TSX
+     * Transfers the contents of where the stack pointer points into register X.
+     */
+    public void tsx(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = regSP-0x0100;
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        regX = temp;
+    }
+    
+    
+    /* PHA
+     * Pushes the contents of the accumulator onto the stack.
+     */
+    public void pha(int addressingMode, int address) {
+        push((short) regACC);
+    }
+    
+    
+    /* PLA
+     * Pulls the contents of the stack pointer in the accumulator.
+     */
+    public void pla(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = pull();
+        flagSign = (temp >> 7) & 1;
+        flagZero = ((temp & 0xFF) == 0) ? 1 : 0;
+        regACC = temp;
+    }
+    
+    
+    /* PHP
+     * Pushes the contents of the flag register onto the stack.
+     */
+    public void php(int addressingMode, int address) {
+        int temp = 0;
+        
+        flagBreak = 1;
+        temp = 0;
+        temp = flagSign | (temp << 1);
+        temp = flagOverflow | (temp << 1);
+        temp = flagNotUsed | (temp << 1);
+        temp = flagBreak | (temp << 1);
+        temp = flagDecimal | (temp << 1);
+        temp = flagInterrupt | (temp << 1);
+        temp = flagZero | (temp << 1);
+        temp = flagCarry | (temp << 1);
+        
+        push((short) temp);
+    }
+    
+    
+    /* PLP
+     * Pulls the contents of the flag register from the stack.
+     */
+    public void plp(int addressingMode, int address) {
+        int temp = 0;
+        
+        temp = pull();
+        flagCarry = temp & 1;
+        flagZero = (temp >> 1) & 1;
+        flagInterrupt = (temp >> 2) & 1;
+        flagDecimal = (temp >> 3) & 1;
+        flagBreak = (temp >> 4) & 1;
+        flagNotUsed = (temp >> 5) & 1;
+        flagOverflow = (temp >> 6) & 1;
+        flagSign = (temp >> 7) & 1;
+        checkIRQLine();
+    }
+    
+    
+    /* STX
+     * Stores the value of register X into specified address.
+     */
+    public void stx(int addressingMode, int address) {
+        write(address, (short) regX);
+    }
+    
+    
+    /* STY
+     * Stores the value of register Y into specified address.
+     */
+    public void sty(int addressingMode, int address) {
+        write(address, (short) regY);
+    }
+    
+    
+    /**
+     * Returns the block holding the instruction at regPC and points blockIndex
+     * at it, decoding the block if it is not cached yet. Returns null if the
+     * instruction has to be decoded every time (I/O pages, illegal opcodes,
+     * instructions running over the end of a page).
+     */
+    private Block nextBlock() {
+        Block block = currentBlock;
+        
+        if(block != null && block.valid && blockIndex < block.length && block.pcs[blockIndex] == regPC)
+            return block;
+        
+        currentBlock = null;
+        
+        BlockPage page = blockPages[regPC >> 8];
+        if(page == null) {
+            idleBlock = null;
+            return null;
+        }
+        
+        // the same memory may be mapped at another address than it was decoded at
+        block = page.blocks[regPC & 0xFF];
+        if(block == null || block.pcs[0] != regPC) {
+            block = decodeBlock(regPC, page);
+            page.blocks[regPC & 0xFF] = block;
+        }
+        
+        if(block.length == 0) {
+            idleBlock = null;
+            return null;
+        }
+        
+        if(block.idleLoop && idleSkip)
+            skipIdleLoop(block);
+        else
+            idleBlock = null;
+        
+        if(compiler != null && block.compiled == null && ++block.entries == COMPILE_THRESHOLD)
+            compileBlock(block);
+        
+        currentBlock = block;
+        blockIndex = 0;
+        return block;
+    }
+    
+    
+    /**
+     * Decodes the instructions from pc up to the next jump, branch, return or
+     * the end of the page.
+     */
+    private Block decodeBlock(int pc, BlockPage page) {
+        byte[] data = readPages[pc >> 8];
+        int base = readOffsets[pc >> 8];
+        Block block = new Block();
+        
+        block.pcs[0] = pc;
+        page.code[pc & 0xFF] = true;
+        page.empty = false;
+        
+        while(block.length < Block.MAX_LENGTH) {
+            int low = pc & 0xFF;
+            int opcode = data[base + low] & 0xFF;
+            int addressingMode = opcodeModes[opcode];
+            int size = getOperandSize(addressingMode);
+            
+            if(opcodeNames[opcode] == null || low + size > 0xFF)
                 break;
-                
-                
-            case 0x28:
-                    /* PLP
-                     * Pulls the contents of the flag register from the stack.
-                     */
-                temp = pull();
-                flagCarry = temp & 1;
-                flagZero = (temp >> 1) & 1;
-                flagInterrupt = (temp >> 2) & 1;
-                flagDecimal = (temp >> 3) & 1;
-                flagBreak = (temp >> 4) & 1;
-                flagNotUsed = (temp >> 5) & 1;
-                flagOverflow = (temp >> 6) & 1;
-                flagSign = (temp >> 7) & 1;
+            
+            int operand = 0;
+            if(size == 1)
+                operand = data[base + low + 1] & 0xFF;
+            else if(size == 2)
+                operand = (data[base + low + 1] & 0xFF) | ((data[base + low + 2] & 0xFF) << 8);
+            
+            int nextPC = (pc + 1 + size) & 0xFFFF;
+            boolean resolved = true;
+            
+            switch(addressingMode) {
+                case ADDR_IMMEDIATE: operand = pc + 1; break;
+                case ADDR_RELATIVE: operand = (nextPC + (byte)operand) & 0xFFFF; break;
+                case ADDR_ZP: case ADDR_ABS: case ADDR_IMPLIED: break;
+                default: resolved = false; break;
+            }
+            
+            for(int i = 0; i <= size; i++)
+                page.code[low + i] = true;
+            
+            block.pcs[block.length] = pc;
+            block.nextPCs[block.length] = nextPC;
+            block.opcodes[block.length] = opcode;
+            block.operands[block.length] = operand;
+            block.resolved[block.length] = resolved;
+            block.length++;
+            
+            // control flow ends the block
+            if(addressingMode == ADDR_RELATIVE || opcode == 0x4C || opcode == 0x6C || opcode == 0x20
+                    || opcode == 0x60 || opcode == 0x40 || opcode == 0x00)
                 break;
-                
-            case 0x86:
-            case 0x96:
-            case 0x8E:
-                    /* STX
-                     * Stores the value of register X into specified address.
-                     */
-                write(address, (short) regX);
-                
+            
+            if((nextPC >> 8) != (pc >> 8))
                 break;
+            
+            pc = nextPC;
+        }
+        
+        checkIdleLoop(block);
+        
+        return block;
+    }
+    
+    
+    /**
+     * Marks blocks that jump or branch back to their own start and do nothing
+     * but read RAM, ROM or the PPU status register. Whether they really are
+     * idle is found out when they are run (see skipIdleLoop).
+     */
+    private void checkIdleLoop(Block block) {
+        int last = block.length - 1;
+        
+        if(last < 0 || block.operands[last] != block.pcs[0])
+            return;
+        if(opcodeModes[block.opcodes[last]] != ADDR_RELATIVE && block.opcodes[last] != 0x4C)
+            return;
+        
+        for(int i = 0; i < last; i++) {
+            int opcode = block.opcodes[i];
+            int addressingMode = opcodeModes[opcode];
+            
+            if(IDLE_INSTRUCTIONS.indexOf(opcodeNames[opcode]) < 0)
+                return;
+            
+            switch(addressingMode) {
+                case ADDR_IMPLIED:
+                case ADDR_ACC:
+                case ADDR_IMMEDIATE:
+                    break;
+                    
+                case ADDR_ZP:
+                case ADDR_ABS:
+                    int address = block.operands[i];
+                    
+                    if(address >= 0x2000 && address < 0x4000 && (address & 7) == 2)
+                        block.readsPPU = true;
+                    else if(readPages[address >> 8] == null)
+                        return;
+                    break;
+                    
+                default:
+                    return;
+            }
+            
+            // shifts write back unless they work on the accumulator
+            if(addressingMode != ADDR_ACC && "ASL LSR ROL ROR".indexOf(opcodeNames[opcode]) >= 0)
+                return;
+        }
+        
+        block.idleLoop = true;
+    }
+    
+    
+    /**
+     * Called when an idle loop candidate is entered. If it was entered last
+     * time too, nothing it reads has changed since and the registers and flags
+     * are the same as then, the loop reads the same values every time round and
+     * cannot get out until something else changes them: the next scheduled
+     * event or, for loops polling $2002, the next change of the status register.
+     * The whole iterations before that are skipped by just counting their cycles.
+     */
+    private void skipIdleLoop(Block block) {
+        int flags = getFlags();
+        long end = nes.getScheduler().getNextEventTime();
+        
+        if(block.readsPPU)
+            end = Math.min(end, nes.getPPU().getNextStatusChange(numCyclesRan));
+        
+        if(idleBlock == block && numCyclesRan < idleEnd && !irqRequested && irqLines == 0 && idleACC == regACC
+                && idleX == regX && idleY == regY && idleSP == regSP && idleFlags == flags) {
+            long iteration = numCyclesRan - idleCycles;
+            
+            // stop one iteration short so the reads that see the change run normally
+            if(iteration > 0 && end != Scheduler.NEVER) {
+                long skipped = ((end - 1 - numCyclesRan)/iteration - 1)*iteration;
                 
-                
-            case 0x84:
-            case 0x94:
-            case 0x8C:
-                    /* STY
-                     * Stores the value of register Y into specified address.
-                     */
-                
-                write(address, (short) regY);
-                
-                break;
+                if(skipped > 0) {
+                    numCyclesRan += skipped;
+                    idleCyclesSkipped += skipped;
+                }
+            }
+        }
+        
+        idleBlock = block;
+        idleCycles = numCyclesRan;
+        idleEnd = end;
+        idleACC = regACC;
+        idleX = regX;
+        idleY = regY;
+        idleSP = regSP;
+        idleFlags = flags;
+    }
+    
+    
+    private void compileBlock(Block block) {
+        BlockCompiler compiler = this.compiler;
+        
+        compiler.begin();
+        block.budget = 0;
+        
+        for(int i = 0; i < block.length; i++) {
+            int opcode = block.opcodes[i];
+            
+            compiler.addInstruction(block.nextPCs[i], opcode, opcodeNames[opcode].toLowerCase(), opcodeModes[opcode],
+                    block.operands[i], block.resolved[i], opcodeCycles[opcode]);
+            
+            if(i < block.length-1)
+                block.budget += opcodeCycles[opcode] + opcodePageCycles[opcode];
+        }
+        
+        block.compiled = compiler.finish();
+    }
+    
+    
+    /**
+     * Runs the compiled block starting at regPC if there is one and it is done
+     * before the given cycle, so no event or interrupt can fall inside it.
+     */
+    private boolean runCompiledBlock(long endCycle) {
+        regPC &= 0xFFFF;
+        
+        Block block = nextBlock();
+        if(block == null || blockIndex != 0 || block.compiled == null || numCyclesRan + block.budget >= endCycle)
+            return false;
+        
+        currentBlock = null;
+        blockExit = false;
+        numInstructionsRan += block.compiled.run(this);
+        
+        return true;
+    }
+    
+    
+    private static int getOperandSize(int addressingMode) {
+        switch(addressingMode) {
+            case ADDR_IMPLIED:
+            case ADDR_ACC:
+                return 0;
+            case ADDR_ABS:
+            case ADDR_ABS_X:
+            case ADDR_ABS_Y:
+            case ADDR_INDIR:
+                return 2;
             default:
-                System.out.println("ILLEGAL OPCODE! " + Integer.toHexString(opcode));
-                debugCounter = 0;
-                break;
+                return 1;
         }
+    }
+    
+    
+    /**
+     * The decoded blocks of the 256 bytes of memory at data[offset...], or null
+     * if the offset is not page aligned.
+     */
+    private BlockPage getBlockPage(BlockPage[] pages, int offset) {
+        if((offset & 0xFF) != 0 || (offset >> 8) >= pages.length)
+            return null;
         
+        if(pages[offset >> 8] == null)
+            pages[offset >> 8] = new BlockPage();
         
-        if(debugCounter > 0)
-            debugCounter--;
+        return pages[offset >> 8];
+    }
+    
+    
+    private BlockPage[] getBlockPages(byte[] data) {
+        BlockPage[] pages = blockMemory.get(data);
         
-        numInstructionsRan++;
+        if(pages == null) {
+            pages = new BlockPage[(data.length + 0xFF) >> 8];
+            blockMemory.put(data, pages);
+        }
+        
+        return pages;
+    }
+    
+    
+    /**
+     * Throws away the blocks decoded from RAM and SRAM (e.g. after they were replaced).
+     */
+    private void clearBlocks() {
+        BlockPage[] pages = blockMemory.get(cpuMemory);
+        
+        if(pages != null) {
+            for(BlockPage page : pages)
+                if(page != null) page.clear();
+        }
         
-        return opcodeSizes[opcode];
+        currentBlock = null;
+        idleBlock = null;
+    }
+    
+    
+    public boolean isBlockCache() {
+        return blockCache;
+    }
+    
+    
+    /**
+     * Runs instructions from cached decoded blocks instead of decoding each
+     * one as it is run.
+     */
+    public void setBlockCache(boolean value) {
+        blockCache = value;
+        currentBlock = null;
+    }
+    
+    
+    public boolean isIdleSkip() {
+        return idleSkip;
+    }
+    
+    
+    /**
+     * Skips ahead over loops waiting for vblank, NMI or another event (see
+     * skipIdleLoop). Only used with the block cache on.
+     */
+    public void setIdleSkip(boolean value) {
+        idleSkip = value;
+        idleBlock = null;
+    }
+    
+    
+    /**
+     * Cycles skipped in idle loops since the last hard reset.
+     */
+    public long getIdleCyclesSkipped() {
+        return idleCyclesSkipped;
+    }
+    
+    
+    public boolean isBlockCompiler() {
+        return compiler != null;
+    }
+    
+    
+    /**
+     * Compiles blocks that are entered often to bytecode (see BlockCompiler).
+     * Only used with the block cache on.
+     */
+    public void setBlockCompiler(boolean value) {
+        compiler = value?new BlockCompiler():null;
+    }
+    
+    
+    /**
+     * Whether a compiled block has to stop after the current instruction: an
+     * interrupt was requested, the mapper was written to, the page table changed
+     * or decoded code was overwritten.
+     */
+    public boolean isBlockExit() {
+        return blockExit;
+    }
+    
+    
+    /**
+     * Charges cycles for an instruction run by a compiled block.
+     */
+    public void addCycles(int cycles) {
+        numCyclesRan += cycles;
+    }
+    
+    
+    /**
+     * Works out the effective address of an instruction run by a compiled block
+     * from its operand and charges its cycles.
+     */
+    public int fetchAddress(int opcode, int operand) {
+        int address = resolveAddress(opcodeModes[opcode], operand);
+        numCyclesRan += opcodeCycles[opcode] + pageCrossed*opcodePageCycles[opcode];
+        return address;
+    }
+    
+    
+    /**
+     * Runs instructions until the next scheduled event is due.
+     */
+    public void runToNextEvent() {
+        Scheduler scheduler = nes.getScheduler();
+        boolean compiled = blockCache && compiler != null;
         
+        while(numCyclesRan < scheduler.getNextEventTime()) {
+            if(compiled && !irqRequested && (irqLines == 0 || flagInterrupt != 0) && runCompiledBlock(scheduler.getNextEventTime()))
+                continue;
+            
+            processNextInstruction();
+        }
+    }
+    
+    
+    /**
+     * Takes a branch, costing one extra cycle or two if the target is on another page.
+     */
+    private void branch(int address) {
+        numCyclesRan += (((regPC ^ address) & 0xFF00) != 0)?2:1;
+        regPC = address;
+    }
+    
+    
+    /**
+     * Number of cpu cycles ran since the last hard reset.
+     */
+    public long getNumCyclesRan() {
+        return numCyclesRan;
+    }
+    
+    
+    /**
+     * Number of instructions ran since the last hard reset.
+     */
+    public long getNumInstructionsRan() {
+        return numInstructionsRan;
+    }
+    
+    
+    /**
+     * Halts the cpu for the given number of cycles (e.g. during sprite DMA).
+     */
+    public void stall(int cycles) {
+        numCyclesRan += cycles;
     }
     
     
     private int pull() {
         regSP++;
         regSP = (regSP & 0xFF) | 0x0100;
-        return nes.getMapper().read(regSP);
+        return read(regSP);
     }
     
     
     private void push(short value) {
-        nes.getMapper().write(regSP, value);
+        write(regSP, value);
         regSP--;
         
         regSP = (regSP & 0xFF) | 0x0100;
@@ -1134,10 +2155,40 @@ public class CPU {
     
     
     public int read(int address) {
+        int page = (address >> 8) & 0xFF;
+        byte[] data = readPages[page];
+        
+        if(data != null)
+            return data[readOffsets[page] + (address & 0xFF)] & 0xFF;
+        
         return nes.getMapper().read(address);
     }
     
     
+    /**
+     * Copies length bytes starting at address to dest[destPos...]. Pages in the
+     * page table are copied in one go, I/O pages are read a byte at a time.
+     */
+    public void read(int address, byte[] dest, int destPos, int length) {
+        while(length > 0) {
+            int page = (address >> 8) & 0xFF;
+            int count = Math.min(length, 0x100 - (address & 0xFF));
+            byte[] data = readPages[page];
+            
+            if(data != null) {
+                System.arraycopy(data, readOffsets[page] + (address & 0xFF), dest, destPos, count);
+            } else {
+                for(int i = 0; i < count; i++)
+                    dest[destPos + i] = (byte)nes.getMapper().read(address + i);
+            }
+            
+            address = (address + count) & 0xFFFF;
+            destPos += count;
+            length -= count;
+        }
+    }
+    
+    
     public void writeJoypadInput(int num, short value) {
         if(value == 0 && joypadLastWrite[0] == 1) {
             joypadsStrobeCount[0] = 0;
@@ -1208,11 +2259,58 @@ public class CPU {
         
         irqRequested = true;
         irqRequestType = irqType;
+        blockExit = true;
+    }
+    
+    
+    /**
+     * Asserts or releases the irq line for one of the IRQ_SOURCE_ bits. The
+     * cpu takes the interrupt whenever the line is held and interrupts are
+     * enabled, until every source has released it (usually when the game
+     * acknowledges it through the source's registers).
+     */
+    public void setIRQLine(int source, boolean asserted) {
+        if(asserted)
+            irqLines |= source;
+        else
+            irqLines &= ~source;
+        
+        checkIRQLine();
+    }
+    
+    
+    public int getIRQLines() {
+        return irqLines;
+    }
+    
+    
+    /**
+     * Stops a compiled block so a held line is seen right after interrupts
+     * are enabled again.
+     */
+    private void checkIRQLine() {
+        if(irqLines != 0 && flagInterrupt == 0)
+            blockExit = true;
     }
     
     
     public void write(int address, short value) {
-        nes.getMapper().write(address, value);
+        int page = (address >> 8) & 0xFF;
+        byte[] data = writePages[page];
+        
+        if(data != null) {
+            data[writeOffsets[page] + (address & 0xFF)] = (byte)value;
+            
+            // self modifying code or code copied to RAM
+            BlockPage blocks = writeBlockPages[page];
+            if(blocks != null && blocks.code[address & 0xFF]) {
+                blocks.clear();
+                blockExit = true;
+            }
+        } else {
+            nes.getMapper().write(address, value);
+            blockExit = true;
+        }
     }
     
     
@@ -1220,6 +2318,7 @@ public class CPU {
         opcodeCycles = new short[256];
         opcodeSizes = new short[256];
         opcodeModes = new short[256];
+        opcodePageCycles = new short[256];
         opcodeNames = new String[256];
         addressModeNames = new String[0x14];
         
@@ -2010,6 +3109,38 @@ public class CPU {
         opcodeNames[0x94] = "STY";
         opcodeNames[0x8C] = "STY";
         
+        /*
+         * extra cycle taken by indexed reads that cross a page boundary
+         */
+        opcodePageCycles[0x7D] = 1; // ADC Absolute, X
+        opcodePageCycles[0x79] = 1; // ADC Absolute, Y
+        opcodePageCycles[0x71] = 1; // ADC Indirect, Y
+        opcodePageCycles[0x3D] = 1; // AND Absolute, X
+        opcodePageCycles[0x39] = 1; // AND Absolute, Y
+        opcodePageCycles[0x31] = 1; // AND Indirect, Y
+        opcodePageCycles[0xDD] = 1; // CMP Absolute, X
+        opcodePageCycles[0xD9] = 1; // CMP Absolute, Y
+        opcodePageCycles[0xD1] = 1; // CMP Indirect, Y
+        opcodePageCycles[0x5D] = 1; // EOR Absolute, X
+        opcodePageCycles[0x59] = 1; // EOR Absolute, Y
+        opcodePageCycles[0x51] = 1; // EOR Indirect, Y
+        opcodePageCycles[0xBD] = 1; // LDA Absolute, X
+        opcodePageCycles[0xB9] = 1; // LDA Absolute, Y
+        opcodePageCycles[0xB1] = 1; // LDA Indirect, Y
+        opcodePageCycles[0xBE] = 1; // LDX Absolute, Y
+        opcodePageCycles[0xBC] = 1; // LDY Absolute, X
+        opcodePageCycles[0x1D] = 1; // ORA Absolute, X
+        opcodePageCycles[0x19] = 1; // ORA Absolute, Y
+        opcodePageCycles[0x11] = 1; // ORA Indirect, Y
+        opcodePageCycles[0xFD] = 1; // SBC Absolute, X
+        opcodePageCycles[0xF9] = 1; // SBC Absolute, Y
+        opcodePageCycles[0xF1] = 1; // SBC Indirect, Y
+        
+        // unknown opcodes still take time
+        for(int i = 0; i < opcodeCycles.length; i++)
+            if(opcodeCycles[i] == 0)
+                opcodeCycles[i] = 2;
+        
         addressModeNames[ADDR_ZP] = "Zero Page";
         addressModeNames[ADDR_ZP_X] = "Zero Page,X";
         addressModeNames[ADDR_ZP_Y] = "Zero Page,Y";
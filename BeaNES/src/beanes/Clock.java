@@ -19,6 +19,8 @@
 
 package beanes;
 
+import java.io.*;
+
 
 public class Clock implements Runnable {
     
@@ -27,6 +29,11 @@ public class Clock implements Runnable {
 
     private long currVBlankTime;
     private long lastVBlankTime;
+    private long frameCount = 0;
+    
+    private volatile Rewind rewind;
+    private volatile boolean rewinding = false;
+    private volatile InputMovie movie;
 
     
     private boolean paused = false;
@@ -45,6 +52,14 @@ public class Clock implements Runnable {
     
     public void stop() {
         running = false;
+        
+        // wait for the emulation thread to finish the current burst
+        Thread t = thread;
+        if(t != null && t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch(InterruptedException e) { }
+        }
     }
     
     public boolean isRunning() {
@@ -52,25 +67,127 @@ public class Clock implements Runnable {
     }
     
     public synchronized void run() {
-
-        long cpuNewCycles = 0;
-        long ppuNewCycles = 341;
+        CPU cpu = nes.getCPU();
+        Scheduler scheduler = nes.getScheduler();
+        
+        long frame = frameCount;
+        
+        frameStarted();
         
         while(running) {
-            while(paused) {}
-            while(ppuNewCycles <= cpuNewCycles*3) {
-                ppuNewCycles += nes.getPPU().runCycles(24);
-            }
-
-            while(cpuNewCycles <= ppuNewCycles/3) {
-                cpuNewCycles += nes.getCPU().processNextInstruction();
+            while(paused && running) {}
+            
+            // run the cpu until something else has to happen
+            cpu.runToNextEvent();
+            scheduler.runEvents(cpu.getNumCyclesRan());
+            
+            if(frameCount != frame) {
+                frame = frameCount;
+                frameFinished();
+                frameStarted();
             }
-
         }
         
         thread = null;
     }
     
+    /**
+     * Runs the nes on the calling thread up to the start of the next vblank.
+     * Used instead of start() when there is no emulation thread.
+     */
+    public void runFrame() {
+        CPU cpu = nes.getCPU();
+        Scheduler scheduler = nes.getScheduler();
+        long frame = frameCount;
+        
+        frameStarted();
+        
+        while(frameCount == frame) {
+            cpu.runToNextEvent();
+            scheduler.runEvents(cpu.getNumCyclesRan());
+        }
+        
+        frameFinished();
+    }
+    
+    
+    /**
+     * Called at the start of each frame, latches the joypads.
+     */
+    private void frameStarted() {
+        InputMovie movie = this.movie;
+        
+        nes.getJoypadInput(0).latch();
+        nes.getJoypadInput(1).latch();
+        
+        if(movie != null)
+            movie.frameStarted(nes);
+    }
+    
+    
+    public InputMovie getMovie() {
+        return movie;
+    }
+    
+    
+    /**
+     * The movie is recorded or played back (see InputMovie.startRecording and
+     * startPlayback) from the start of the next frame, null for none.
+     */
+    public void setMovie(InputMovie movie) {
+        this.movie = movie;
+    }
+    
+    
+    /**
+     * Called between frames, records the frame for rewinding or goes back one.
+     */
+    private void frameFinished() {
+        Rewind rewind = this.rewind;
+        
+        if(rewind == null) return;
+        
+        if(rewinding) {
+            try {
+                rewind.rewind(nes, 1);
+            } catch(IOException e) {
+                System.out.println(e.getMessage());
+                rewinding = false;
+            }
+        } else {
+            rewind.record(nes);
+        }
+    }
+    
+    
+    public Rewind getRewind() {
+        return rewind;
+    }
+    
+    
+    /**
+     * Frames are only recorded for rewinding if there is a Rewind, null turns it off.
+     */
+    public void setRewind(Rewind rewind) {
+        this.rewind = rewind;
+    }
+    
+    
+    /**
+     * While set the game runs backwards, one recorded frame per frame.
+     */
+    public void setRewinding(boolean value) {
+        rewinding = value;
+    }
+    
+    
+    /**
+     * Number of frames finished since the clock was created.
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+    
     public boolean isThrottle() {
         return throttle;
     }
@@ -88,6 +205,8 @@ public class Clock implements Runnable {
     }
     
     public void signalVBlank() {
+        frameCount++;
+        
         if(throttle) {
         do {
             currVBlankTime = System.nanoTime();
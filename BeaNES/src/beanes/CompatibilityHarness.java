@@ -0,0 +1,221 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package beanes;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Runs every rom in a directory headless and compares CRCs of the frame at
+ * fixed checkpoints with a golden manifest, printing the emulated frames per
+ * second of each rom along the way. The roms run in parallel on all cores.
+ *
+ * usage: CompatibilityHarness romdir manifest [-frames n] [-interval n] [-threads n] [-update]
+ *
+ * Input for foo.nes is taken from foo.bnm (InputMovie) or foo.txt (InputScript)
+ * next to it if there is one. -update writes the current CRCs to the manifest
+ * instead of comparing. The exit code is 1 if any rom failed.
+ *
+ * Manifest lines are "rom frame crc", lines starting with # are skipped.
+ */
+public class CompatibilityHarness {
+    
+    public static final int DEFAULT_FRAMES = 600;
+    public static final int DEFAULT_INTERVAL = 60;
+    
+    // rom file name -> checkpoint frame -> crc
+    private TreeMap<String, TreeMap<Integer, Long>> manifest = new TreeMap<String, TreeMap<Integer, Long>>();
+    
+    
+    public void readManifest(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        String line;
+        
+        try {
+            while((line = in.readLine()) != null) {
+                line = line.trim();
+                if(line.length() == 0 || line.startsWith("#")) continue;
+                
+                String[] fields = line.split("\\s+");
+                if(fields.length != 3)
+                    throw new IOException(file.getName() + ": bad line '" + line + "'");
+                
+                try {
+                    put(fields[0], Integer.parseInt(fields[1]), Long.parseLong(fields[2], 16));
+                } catch(NumberFormatException e) {
+                    throw new IOException(file.getName() + ": bad line '" + line + "'");
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    
+    public void writeManifest(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        
+        out.println("# " + BeaNES.PROGRAM_STRING + " frame CRCs: rom frame crc");
+        for(String rom : manifest.keySet()) {
+            for(Map.Entry<Integer, Long> entry : manifest.get(rom).entrySet())
+                out.println(rom + " " + entry.getKey() + " " + Long.toHexString(entry.getValue()));
+        }
+        
+        out.close();
+        if(out.checkError())
+            throw new IOException("could not write " + file);
+    }
+    
+    
+    private void put(String rom, int frame, long crc) {
+        TreeMap<Integer, Long> checkpoints = manifest.get(rom);
+        
+        if(checkpoints == null) {
+            checkpoints = new TreeMap<Integer, Long>();
+            manifest.put(rom, checkpoints);
+        }
+        
+        checkpoints.put(frame, crc);
+    }
+    
+    
+    /**
+     * Compares a result with the manifest (or stores it when updating) and returns
+     * the status to report.
+     */
+    private String check(NESFarm.Result result, boolean update) {
+        String rom = result.job.romFile.getName();
+        int interval = result.job.checkpointInterval;
+        
+        if(result.error != null)
+            return "ERROR " + result.error;
+        
+        if(update) {
+            manifest.remove(rom);
+            for(int i = 0; i < result.checkpoints.length; i++)
+                put(rom, (i+1)*interval, result.checkpoints[i]);
+            
+            return "UPDATED";
+        }
+        
+        TreeMap<Integer, Long> golden = manifest.get(rom);
+        if(golden == null)
+            return "NEW";
+        
+        for(int i = 0; i < result.checkpoints.length; i++) {
+            Long crc = golden.get((i+1)*interval);
+            
+            if(crc != null && crc.longValue() != result.checkpoints[i])
+                return "FAIL at frame " + (i+1)*interval;
+        }
+        
+        return "PASS";
+    }
+    
+    
+    private static File findInput(File romFile) {
+        String name = romFile.getName();
+        String base = (name.lastIndexOf('.') > 0)?name.substring(0, name.lastIndexOf('.')):name;
+        String[] extensions = {".bnm", ".txt"};
+        
+        for(String extension : extensions) {
+            File input = new File(romFile.getParentFile(), base + extension);
+            if(input.isFile()) return input;
+        }
+        
+        return null;
+    }
+    
+    
+    public static void main(String[] args) throws Exception {
+        int frames = DEFAULT_FRAMES;
+        int interval = DEFAULT_INTERVAL;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean update = false;
+        ArrayList<String> files = new ArrayList<String>();
+        
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-frames") && i+1 < args.length)
+                frames = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-interval") && i+1 < args.length)
+                interval = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-threads") && i+1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-update"))
+                update = true;
+            else
+                files.add(args[i]);
+        }
+        
+        if(files.size() != 2 || interval <= 0) {
+            System.out.println("usage: CompatibilityHarness romdir manifest [-frames n] [-interval n] [-threads n] [-update]");
+            System.exit(1);
+        }
+        
+        File romDir = new File(files.get(0));
+        File manifestFile = new File(files.get(1));
+        
+        File[] romFiles = romDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.toLowerCase().endsWith(".nes");
+            }
+        });
+        
+        if(romFiles == null) {
+            System.out.println("cannot read " + romDir);
+            System.exit(1);
+        }
+        Arrays.sort(romFiles);
+        
+        CompatibilityHarness harness = new CompatibilityHarness();
+        if(manifestFile.exists())
+            harness.readManifest(manifestFile);
+        
+        ArrayList<NESFarm.Job> jobs = new ArrayList<NESFarm.Job>();
+        for(File romFile : romFiles)
+            jobs.add(new NESFarm.Job(romFile, frames, findInput(romFile), interval));
+        
+        NESFarm farm = new NESFarm(threads);
+        List<NESFarm.Result> results = farm.run(jobs);
+        
+        int failed = 0;
+        StringBuilder report = new StringBuilder();
+        
+        for(NESFarm.Result result : results) {
+            String status = harness.check(result, update);
+            
+            if(status.startsWith("FAIL") || status.startsWith("ERROR"))
+                failed++;
+            
+            report.append(String.format("%-40s %8.1f fps %5.1f%% idle  %s%n", result.job.romFile.getName(),
+                    result.getFramesPerSecond(), result.getIdlePercentage(), status));
+        }
+        
+        System.out.print(report);
+        System.out.println(String.format("%d roms, %d failed, %d frames each, %.1f fps total on %d threads",
+                results.size(), failed, frames, farm.getFramesPerSecond(), threads));
+        
+        if(update)
+            harness.writeManifest(manifestFile);
+        
+        System.exit((failed > 0)?1:0);
+    }
+}
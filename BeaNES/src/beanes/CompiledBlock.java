@@ -0,0 +1,34 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package beanes;
+
+
+/**
+ * A block of 6502 code translated to bytecode by BlockCompiler.
+ */
+public interface CompiledBlock {
+    
+    /**
+     * Runs the block and returns how many instructions it ran. Stops early after
+     * an instruction that makes CPU.isBlockExit() true.
+     */
+    int run(CPU cpu);
+}
@@ -32,9 +32,12 @@ public class GUI extends JFrame {
     private BeaNES nes;
     final JMenuBar menuBar = new JMenuBar();
     private boolean fullScreen = false;
+    private File movieFile;
+    private ROMLibrary library = new ROMLibrary();
     
     public GUI() {
         nes = new BeaNES(this);
+        loadLibrary();
         createMenuBar();
         setTitle(BeaNES.PROGRAM_STRING);
         
@@ -58,6 +61,16 @@ public class GUI extends JFrame {
                 if(e.getKeyCode() == e.VK_ESCAPE) {
                     setFullScreen(!isFullScreen());
                 }
+                
+                if(e.getKeyCode() == e.VK_BACK_SPACE) {
+                    nes.getClock().setRewinding(true);
+                }
+            }
+            
+            public void keyReleased(KeyEvent e) {
+                if(e.getKeyCode() == e.VK_BACK_SPACE) {
+                    nes.getClock().setRewinding(false);
+                }
             }
         });
         
@@ -77,24 +90,38 @@ public class GUI extends JFrame {
         JMenu helpMenu = new JMenu("Help");
         
         JMenuItem loadROMMenuItem = new JMenuItem("Load ROM");
+        JMenuItem libraryMenuItem = new JMenuItem("ROM Library");
         JMenuItem hardResetMenuItem = new JMenuItem("Hard Reset");
         JMenuItem videoMenuItem = new JMenuItem("Video Settings");
         JMenuItem controlsMenuItem = new JMenuItem("Controller Settings");
+        JMenuItem recordMovieMenuItem = new JMenuItem("Record Movie");
+        JMenuItem playMovieMenuItem = new JMenuItem("Play Movie");
+        JMenuItem stopMovieMenuItem = new JMenuItem("Stop Movie");
         JMenuItem exitMenuItem = new JMenuItem("Exit");
         final JCheckBoxMenuItem fullScreen = new JCheckBoxMenuItem("Full Screen");
         final JCheckBoxMenuItem throttle = new JCheckBoxMenuItem("Throttle CPU");
         final JCheckBoxMenuItem showFPS = new JCheckBoxMenuItem("Show FPS");
+        final JCheckBoxMenuItem noSpriteFlicker = new JCheckBoxMenuItem("No Sprite Flicker");
+        final JCheckBoxMenuItem rewind = new JCheckBoxMenuItem("Rewind (Backspace)");
+        final JCheckBoxMenuItem blockCompiler = new JCheckBoxMenuItem("Compile Hot Code");
         JMenuItem aboutMenuItem = new JMenuItem("About Authors /Contact Authors");
         
         
         // build menu
         nesMenu.add(loadROMMenuItem);
+        nesMenu.add(libraryMenuItem);
+        nesMenu.add(recordMovieMenuItem);
+        nesMenu.add(playMovieMenuItem);
+        nesMenu.add(stopMovieMenuItem);
         nesMenu.add(exitMenuItem);
         optionsMenu.add(videoMenuItem);
         optionsMenu.add(controlsMenuItem);
         optionsMenu.add(throttle);
         optionsMenu.add(fullScreen);
         optionsMenu.add(showFPS);
+        optionsMenu.add(noSpriteFlicker);
+        optionsMenu.add(rewind);
+        optionsMenu.add(blockCompiler);
         helpMenu.add(aboutMenuItem);
         menuBar.add(nesMenu);
         menuBar.add(optionsMenu);
@@ -131,6 +158,30 @@ public class GUI extends JFrame {
             }
         });
                 
+        libraryMenuItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                new LibraryPanel(GUI.this, library, getLibraryFile("romindex.txt"));
+            }
+        });
+        
+        recordMovieMenuItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                recordMovie();
+            }
+        });
+        
+        playMovieMenuItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                playMovie();
+            }
+        });
+        
+        stopMovieMenuItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                stopMovie();
+            }
+        });
+        
         exitMenuItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 System.exit(1);
@@ -167,6 +218,27 @@ public class GUI extends JFrame {
                 BeaNES.getProperties().setProperty(BeaNESProperties.PROPERTY_SHOW_FPS, Boolean.toString(showFPS.isSelected()));
             }
         });
+        noSpriteFlicker.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                nes.getPPU().setSpriteLimit(!nes.getPPU().isSpriteLimit());
+                noSpriteFlicker.setSelected(!nes.getPPU().isSpriteLimit());
+                BeaNES.getProperties().setProperty(BeaNESProperties.PROPERTY_NO_SPRITE_FLICKER, Boolean.toString(noSpriteFlicker.isSelected()));
+            }
+        });
+        rewind.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                setRewind(nes.getClock().getRewind() == null);
+                rewind.setSelected(nes.getClock().getRewind() != null);
+                BeaNES.getProperties().setProperty(BeaNESProperties.PROPERTY_REWIND, Boolean.toString(rewind.isSelected()));
+            }
+        });
+        blockCompiler.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                nes.getCPU().setBlockCompiler(!nes.getCPU().isBlockCompiler());
+                blockCompiler.setSelected(nes.getCPU().isBlockCompiler());
+                BeaNES.getProperties().setProperty(BeaNESProperties.PROPERTY_BLOCK_COMPILER, Boolean.toString(blockCompiler.isSelected()));
+            }
+        });
         aboutMenuItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 AboutPanel about = new AboutPanel();
@@ -193,6 +265,17 @@ public class GUI extends JFrame {
         } catch(NumberFormatException e) { }
         
         
+        boolean noFlicker = Boolean.valueOf(BeaNES.getProperties().getProperty(BeaNESProperties.PROPERTY_NO_SPRITE_FLICKER));
+        nes.getPPU().setSpriteLimit(!noFlicker);
+        noSpriteFlicker.setSelected(noFlicker);
+        
+        setRewind(Boolean.valueOf(BeaNES.getProperties().getProperty(BeaNESProperties.PROPERTY_REWIND)));
+        rewind.setSelected(nes.getClock().getRewind() != null);
+        
+        nes.getCPU().setBlockCompiler(Boolean.valueOf(BeaNES.getProperties().getProperty(BeaNESProperties.PROPERTY_BLOCK_COMPILER)));
+        blockCompiler.setSelected(nes.getCPU().isBlockCompiler());
+        
+        
         setJMenuBar(menuBar);
     }
     
@@ -207,16 +290,129 @@ public class GUI extends JFrame {
         File romFile = chooser.getSelectedFile();
         
         if(romFile != null) {
-            nes.stop();
-            
             // save the rom path you were last in
             nes.getProperties().setProperty(BeaNESProperties.PROPERTY_ROMPATH, romFile.getAbsolutePath());
-            nes.loadROM(new ROM(nes, romFile));
+            loadROM(new ROM(nes, romFile));
+        }
+    }
+    
+    
+    public void loadROM(ROM rom) {
+        nes.stop();
+        nes.loadROM(rom);
+        
+        // we assume you would automatically like to play after you load the rom
+        nes.start();
+        menuBar.setVisible(nes.getClock().isPaused());
+    }
+    
+    
+    /**
+     * Reads the rom index and header database kept next to the properties, the
+     * directory is only scanned from the ROM Library window.
+     */
+    private void loadLibrary() {
+        try {
+            if(getLibraryFile("romindex.txt").exists())
+                library.readIndex(getLibraryFile("romindex.txt"));
+            if(getLibraryFile("romdb.txt").exists())
+                library.readDatabase(getLibraryFile("romdb.txt"));
+        } catch(IOException e) {
+            System.out.println(e.getMessage());
+        }
+        
+        ROM.setLibrary(library);
+    }
+    
+    
+    private File getLibraryFile(String name) {
+        return new File(BeaNES.getProperties().getProperty("rootPath"), name);
+    }
+    
+    
+    /**
+     * Records the joypads from a hard reset on, the movie is written when it is stopped.
+     */
+    private void recordMovie() {
+        if(nes.getROM() == null) return;
+        
+        JFileChooser chooser = new JFileChooser(nes.getProperties().getProperty(BeaNESProperties.PROPERTY_ROMPATH));
+        chooser.setDialogTitle("Record Movie");
+        
+        if(chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        
+        nes.stop();
+        stopMovie();
+        movieFile = chooser.getSelectedFile();
+        
+        InputMovie movie = new InputMovie();
+        movie.startRecording();
+        
+        nes.getClock().setMovie(movie);
+        nes.start();
+    }
+    
+    
+    /**
+     * Plays a movie back from a hard reset on.
+     */
+    private void playMovie() {
+        if(nes.getROM() == null) return;
+        
+        JFileChooser chooser = new JFileChooser(nes.getProperties().getProperty(BeaNESProperties.PROPERTY_ROMPATH));
+        chooser.setDialogTitle("Play Movie");
+        
+        if(chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        
+        try {
+            InputMovie movie = InputMovie.load(chooser.getSelectedFile());
+            movie.startPlayback();
             
-            // we assume you would automatically like to play after you load the rom
+            nes.stop();
+            stopMovie();
+            nes.getClock().setMovie(movie);
             nes.start();
-            menuBar.setVisible(nes.getClock().isPaused());
+        } catch(IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+    
+    
+    /**
+     * Detaches the movie and writes it if it was recording. The clock thread is
+     * stopped meanwhile so the last frame is not added while it is saved, and
+     * started again (without a reset) if it was running.
+     */
+    private void stopMovie() {
+        Clock clock = nes.getClock();
+        InputMovie movie = clock.getMovie();
+        
+        if(movie == null) return;
+        
+        boolean running = clock.isRunning();
+        clock.stop();
+        clock.setMovie(null);
+        
+        if(movie.getMode() == InputMovie.RECORDING) {
+            try {
+                movie.save(movieFile);
+            } catch(IOException e) {
+                System.out.println(e.getMessage());
+            }
         }
+        
+        movie.stop();
+        
+        if(running)
+            clock.start();
+    }
+    
+    
+    /**
+     * Keeps the last minute of frames in up to 32 MB, with a keyframe every second.
+     */
+    private void setRewind(boolean value) {
+        nes.getClock().setRewind(value?new Rewind(32 << 20, 60*60, 60):null);
     }
     
     
@@ -0,0 +1,150 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package beanes;
+
+import java.io.*;
+import java.util.zip.*;
+
+
+/**
+ * Runs a rom for a number of frames as fast as possible without a window or
+ * sound card, optionally with joypad input from an InputScript or InputMovie
+ * file. The input can be recorded to a movie file.
+ *
+ * usage: HeadlessRunner rom frames [input [movie to record]]
+ *
+ * Prints the run time, the frames per second and a CRC32 of the last frame.
+ */
+public class HeadlessRunner implements FrameSink {
+    
+    private BeaNES nes;
+    private int[] lastFrame;
+    private InputScript input;
+    private int frame = 0;
+    
+    
+    public HeadlessRunner(File romFile) throws IOException {
+        nes = new BeaNES(this, null);
+        nes.loadROM(new ROM(nes, romFile));
+        
+        if(nes.getMapper() == null)
+            throw new IOException("could not load " + romFile.getName());
+        
+        nes.powerUp();
+    }
+    
+    
+    /**
+     * Takes the joypad input from an InputScript or InputMovie file.
+     */
+    public void setInput(File inputFile) throws IOException {
+        if(InputMovie.isMovie(inputFile)) {
+            InputMovie movie = InputMovie.load(inputFile);
+            movie.startPlayback();
+            nes.getClock().setMovie(movie);
+        } else {
+            input = new InputScript(inputFile);
+        }
+    }
+    
+    
+    /**
+     * Runs the given number of frames and returns the time it took in ns.
+     */
+    public long run(int frames) {
+        long start = System.nanoTime();
+        
+        for(int i = 0; i < frames; i++) {
+            if(input != null) input.apply(nes, frame);
+            nes.getClock().runFrame();
+            frame++;
+        }
+        
+        return System.nanoTime() - start;
+    }
+    
+    
+    public BeaNES getNES() {
+        return nes;
+    }
+    
+    
+    public void renderImage(int[] raster) {
+        lastFrame = raster;
+    }
+    
+    
+    /**
+     * CRC32 of the 240 visible lines of the last frame.
+     */
+    public long getFrameCRC() {
+        CRC32 crc = new CRC32();
+        
+        if(lastFrame == null) return 0;
+        
+        for(int i = 0; i < 240*256; i++) {
+            int color = lastFrame[i];
+            crc.update(color >> 16);
+            crc.update(color >> 8);
+            crc.update(color);
+        }
+        
+        return crc.getValue();
+    }
+    
+    
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.out.println("usage: HeadlessRunner rom frames [input [movie to record]]");
+            System.exit(1);
+        }
+        
+        // the clock plays back or records one movie at a time
+        if(args.length > 3 && InputMovie.isMovie(new File(args[2]))) {
+            System.out.println("A movie cannot be played back and recorded at once, record from an input script");
+            System.exit(1);
+        }
+        
+        File romFile = new File(args[0]);
+        int frames = Integer.parseInt(args[1]);
+        InputMovie movie = null;
+        
+        HeadlessRunner runner = new HeadlessRunner(romFile);
+        
+        if(args.length > 2)
+            runner.setInput(new File(args[2]));
+        
+        if(args.length > 3) {
+            movie = new InputMovie();
+            movie.startRecording();
+            runner.getNES().getClock().setMovie(movie);
+        }
+        
+        long time = runner.run(frames);
+        
+        if(movie != null)
+            movie.save(new File(args[3]));
+        
+        System.out.println(romFile.getName() + ": " + frames + " frames in " + (time/1000000) + " ms, "
+                + (int)(frames*1000000000.0/time) + " fps, frame crc " + Long.toHexString(runner.getFrameCRC()));
+        System.out.println(runner.getNES().getCPU().getIdleCyclesSkipped() + " of "
+                + runner.getNES().getCPU().getNumCyclesRan() + " cpu cycles skipped in idle loops");
+    }
+}
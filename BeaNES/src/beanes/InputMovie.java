@@ -0,0 +1,181 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package beanes;
+
+import java.io.*;
+
+
+/**
+ * The buttons held on both joypads for each frame since power up, so a run can
+ * be repeated exactly (and as fast as the machine allows).
+ *
+ * File format (big endian):
+ *   int     MAGIC ("BNMV")
+ *   int     VERSION
+ *   int     number of frames
+ *   then per frame one byte for joypad 0 and one for joypad 1 (bit n = button n
+ *   of JoypadInput)
+ */
+public class InputMovie {
+    
+    public static final int MAGIC = 0x424E4D56;
+    public static final int VERSION = 1;
+    
+    public static final int STOPPED = 0;
+    public static final int RECORDING = 1;
+    public static final int PLAYING = 2;
+    
+    private byte[] data = new byte[2*60*60];
+    private int frames;
+    private int frame;
+    private int mode = STOPPED;
+    
+    
+    /**
+     * Records from the next frame on, anything recorded before is dropped.
+     */
+    public void startRecording() {
+        frames = 0;
+        frame = 0;
+        mode = RECORDING;
+    }
+    
+    
+    public void startPlayback() {
+        frame = 0;
+        mode = PLAYING;
+    }
+    
+    
+    public void stop() {
+        mode = STOPPED;
+    }
+    
+    
+    public int getMode() {
+        return mode;
+    }
+    
+    
+    public int getFrameCount() {
+        return frames;
+    }
+    
+    
+    /**
+     * Called by the clock at the start of each frame after the joypads are latched.
+     * Records what they are, or replaces it with the movie. Playback stops at
+     * the end of the movie and the joypads are left to the keyboard.
+     */
+    public void frameStarted(BeaNES nes) {
+        if(mode == RECORDING) {
+            if(frames*2 == data.length) {
+                byte[] bigger = new byte[data.length*2];
+                System.arraycopy(data, 0, bigger, 0, data.length);
+                data = bigger;
+            }
+            
+            data[frames*2] = (byte)nes.getJoypadInput(0).getButtons();
+            data[frames*2 + 1] = (byte)nes.getJoypadInput(1).getButtons();
+            frames++;
+        }
+        
+        else if(mode == PLAYING) {
+            if(frame >= frames) {
+                mode = STOPPED;
+                return;
+            }
+            
+            nes.getJoypadInput(0).setButtons(data[frame*2] & 0xFF);
+            nes.getJoypadInput(1).setButtons(data[frame*2 + 1] & 0xFF);
+            frame++;
+        }
+    }
+    
+    
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+        
+        dataOut.writeInt(MAGIC);
+        dataOut.writeInt(VERSION);
+        dataOut.writeInt(frames);
+        dataOut.write(data, 0, frames*2);
+        dataOut.flush();
+    }
+    
+    
+    public static InputMovie read(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in));
+        InputMovie movie = new InputMovie();
+        
+        if(dataIn.readInt() != MAGIC)
+            throw new IOException("not an input movie");
+        
+        int version = dataIn.readInt();
+        if(version != VERSION)
+            throw new IOException("unsupported input movie version " + version);
+        
+        movie.frames = dataIn.readInt();
+        movie.data = new byte[Math.max(movie.frames*2, 2)];
+        dataIn.readFully(movie.data, 0, movie.frames*2);
+        
+        return movie;
+    }
+    
+    
+    public void save(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+    
+    
+    public static InputMovie load(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+    
+    
+    /**
+     * Checks the magic number, for telling movies from InputScript files.
+     */
+    public static boolean isMovie(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            
+            try {
+                return in.readInt() == MAGIC;
+            } finally {
+                in.close();
+            }
+        } catch(IOException e) {
+            return false;
+        }
+    }
+}
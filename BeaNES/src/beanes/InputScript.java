@@ -0,0 +1,125 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package beanes;
+
+import java.util.*;
+import java.io.*;
+
+
+/**
+ * Joypad input read from a text file, one change per line:
+ *
+ *   frame joypad buttons
+ *
+ * e.g. "120 0 START" holds start on joypad 0 from frame 120 until the next line
+ * for that joypad, "130 0 -" releases everything and "200 0 RIGHT+A" holds right
+ * and A. Empty lines and lines starting with # are skipped.
+ */
+public class InputScript {
+    
+    public static final String[] BUTTON_NAMES = {
+        "A", "B", "SELECT", "START", "UP", "DOWN", "LEFT", "RIGHT"
+    };
+    
+    // frame, joypad and button bits of each change, ordered by frame
+    private ArrayList<int[]> changes = new ArrayList<int[]>();
+    private int next = 0;
+    
+    
+    public InputScript(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        String line;
+        int lineNumber = 0;
+        
+        try {
+            while((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if(line.length() == 0 || line.startsWith("#")) continue;
+                
+                String[] fields = line.split("\\s+");
+                if(fields.length != 3)
+                    throw new IOException(file.getName() + ":" + lineNumber + ": expected frame, joypad and buttons");
+                
+                try {
+                    int frame = Integer.parseInt(fields[0]);
+                    int joypad = Integer.parseInt(fields[1]);
+                    
+                    if(joypad < 0 || joypad > 1)
+                        throw new IOException(file.getName() + ":" + lineNumber + ": no joypad " + joypad);
+                    
+                    add(frame, joypad, parseButtons(fields[2]));
+                } catch(NumberFormatException e) {
+                    throw new IOException(file.getName() + ":" + lineNumber + ": " + e.getMessage());
+                } catch(IllegalArgumentException e) {
+                    throw new IOException(file.getName() + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    
+    /**
+     * Holds the given buttons (bit n = button n of JoypadInput) on joypad from frame on.
+     */
+    public void add(int frame, int joypad, int buttons) {
+        int i = changes.size();
+        
+        // keep changes in frame order, later lines win on the same frame
+        while(i > 0 && changes.get(i-1)[0] > frame) i--;
+        
+        changes.add(i, new int[] {frame, joypad, buttons});
+    }
+    
+    
+    /**
+     * Sets the joypads to what they are at the given frame. Frames have to be
+     * passed in increasing order.
+     */
+    public void apply(BeaNES nes, int frame) {
+        while(next < changes.size() && changes.get(next)[0] <= frame) {
+            int[] change = changes.get(next++);
+            JoypadInput joypad = nes.getJoypadInput(change[1]);
+            
+            for(int button = 0; button < BUTTON_NAMES.length; button++)
+                joypad.setButtonState(button, (change[2] >> button) & 1);
+        }
+    }
+    
+    
+    public static int parseButtons(String value) {
+        int buttons = 0;
+        
+        if(value.equals("-")) return 0;
+        
+        for(String name : value.split("\\+")) {
+            int button = Arrays.asList(BUTTON_NAMES).indexOf(name.toUpperCase());
+            
+            if(button < 0)
+                throw new IllegalArgumentException("unknown button " + name);
+            
+            buttons |= 1 << button;
+        }
+        
+        return buttons;
+    }
+}
@@ -40,6 +40,9 @@ public class JoypadInput extends KeyAdapter {
     public static final int BUTTON_UNBOUNDED = -1;
     
     private int[] keyboardMap = new int[255];
+    
+    // what the keyboard (or setButtonState) says, and what the cpu sees this frame
+    private int[] pressedStates = {0,0,0,0,0,0,0,0};
     private int[] buttonStates = {0,0,0,0,0,0,0,0};
     
     private int num;
@@ -125,11 +128,53 @@ public class JoypadInput extends KeyAdapter {
     }
     
     
+    /**
+     * Presses (1) or releases (0) a button without going through the keyboard.
+     * Takes effect at the start of the next frame.
+     */
+    public synchronized void setButtonState(int button, int state) {
+        if(button < pressedStates.length && button >= 0)
+            pressedStates[button] = state;
+    }
+    
+    
+    /**
+     * Called by the clock at the start of each frame, the cpu sees the buttons
+     * that were down at that point for the whole frame so runs can be repeated.
+     */
+    public synchronized void latch() {
+        for(int i = 0; i < buttonStates.length; i++)
+            buttonStates[i] = pressedStates[i];
+    }
+    
+    
+    /**
+     * The latched buttons, bit n is button n.
+     */
+    public int getButtons() {
+        int buttons = 0;
+        
+        for(int i = 0; i < buttonStates.length; i++)
+            buttons |= buttonStates[i] << i;
+        
+        return buttons;
+    }
+    
+    
+    /**
+     * Overrides the latched buttons for this frame (movie playback).
+     */
+    public void setButtons(int buttons) {
+        for(int i = 0; i < buttonStates.length; i++)
+            buttonStates[i] = (buttons >> i) & 1;
+    }
+    
+    
     public synchronized void keyPressed(KeyEvent e) {
         int button = keyboardMap[e.getKeyCode()];
         
-        if(button < buttonStates.length && button >= 0)
-            buttonStates[button] = 1;
+        if(button < pressedStates.length && button >= 0)
+            pressedStates[button] = 1;
         
     }
     
@@ -137,8 +182,8 @@ public class JoypadInput extends KeyAdapter {
     public synchronized void keyReleased(KeyEvent e) {
         int button = keyboardMap[e.getKeyCode()];
         
-        if(button < buttonStates.length && button >= 0)
-            buttonStates[button] = 0;
+        if(button < pressedStates.length && button >= 0)
+            pressedStates[button] = 0;
         
     }
     
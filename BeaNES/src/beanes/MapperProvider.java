@@ -0,0 +1,37 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package beanes;
+
+
+/**
+ * Supplies memory mappers for some iNES mapper numbers. Providers outside
+ * BeaNES are found with java.util.ServiceLoader: list the class in
+ * META-INF/services/beanes.MapperProvider of its jar. See MapperRegistry.
+ */
+public interface MapperProvider {
+    
+    /**
+     * The iNES mapper numbers this provider can create mappers for.
+     */
+    public abstract int[] getMapperNumbers();
+    
+    public abstract MemoryMapper createMapper(int number, BeaNES nes);
+}
@@ -0,0 +1,79 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package beanes;
+
+import beanes.mappers.*;
+import java.util.*;
+
+
+/**
+ * Maps iNES mapper numbers to the providers of their memory mappers. The
+ * mappers that come with BeaNES are registered first, providers found by
+ * ServiceLoader after them, so a plugin can replace a built in mapper.
+ */
+public class MapperRegistry {
+    
+    private static HashMap<Integer, MapperProvider> providers;
+    
+    
+    private static synchronized HashMap<Integer, MapperProvider> getProviders() {
+        if(providers == null) {
+            providers = new HashMap<Integer, MapperProvider>();
+            register(new StandardMappers());
+            
+            try {
+                for(MapperProvider provider : ServiceLoader.load(MapperProvider.class))
+                    register(provider);
+            } catch(ServiceConfigurationError e) {
+                System.out.println("Could not load mapper plugin: " + e.getMessage());
+            }
+        }
+        
+        return providers;
+    }
+    
+    
+    public static synchronized void register(MapperProvider provider) {
+        HashMap<Integer, MapperProvider> map = (providers == null)?getProviders():providers;
+        
+        for(int number : provider.getMapperNumbers())
+            map.put(number, provider);
+    }
+    
+    
+    public static synchronized boolean isSupported(int number) {
+        return getProviders().containsKey(number);
+    }
+    
+    
+    /**
+     * A new mapper for the given iNES mapper number, null if there is none.
+     */
+    public static MemoryMapper createMapper(int number, BeaNES nes) {
+        MapperProvider provider;
+        
+        synchronized(MapperRegistry.class) {
+            provider = getProviders().get(number);
+        }
+        
+        return (provider == null)?null:provider.createMapper(number, nes);
+    }
+}
@@ -19,12 +19,24 @@
 
 package beanes;
 
+import java.nio.*;
+
 
 public interface MemoryMapper {
     
     public abstract void write(int address, short value);
     
-    public abstract short read(int address);
+    /**
+     * The byte at address, 0-255.
+     */
+    public abstract int read(int address);
     
     public abstract void loadROM(ROM rom);
+    
+    /**
+     * Writes the bank selection and any other mapper registers for a SaveState.
+     */
+    public abstract void saveState(ByteBuffer out);
+    
+    public abstract void loadState(ByteBuffer in);
 }
@@ -0,0 +1,208 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package beanes;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Runs many headless nes instances at once in one jvm, one per job, on a
+ * fixed pool of threads (one per core by default). Instances running the same
+ * rom file share its banks.
+ *
+ * usage: NESFarm rom frames instances [threads [input]]
+ */
+public class NESFarm {
+    
+    public static class Job {
+        public File romFile;
+        public int frames;
+        public File inputFile;      // InputScript or InputMovie, may be null
+        public int checkpointInterval;  // frames between frame CRCs, 0 for the last frame only
+        
+        public Job(File romFile, int frames, File inputFile) {
+            this(romFile, frames, inputFile, 0);
+        }
+        
+        public Job(File romFile, int frames, File inputFile, int checkpointInterval) {
+            this.romFile = romFile;
+            this.frames = frames;
+            this.inputFile = inputFile;
+            this.checkpointInterval = checkpointInterval;
+        }
+    }
+    
+    
+    public static class Result {
+        public Job job;
+        public long time;           // ns spent running frames
+        public long frameCRC;       // CRC32 of the last frame
+        public long[] checkpoints;  // CRC32 of every checkpointInterval-th frame
+        public String error;        // why the job failed, null if it ran
+        public long cycles;         // cpu cycles emulated
+        public long idleCycles;     // cpu cycles skipped in idle loops
+        
+        public Result(Job job, long time, long frameCRC, long[] checkpoints, String error) {
+            this.job = job;
+            this.time = time;
+            this.frameCRC = frameCRC;
+            this.checkpoints = checkpoints;
+            this.error = error;
+        }
+        
+        /**
+         * Percentage of the emulated cpu cycles that were skipped in idle loops.
+         */
+        public double getIdlePercentage() {
+            return (cycles == 0)?0:idleCycles*100.0/cycles;
+        }
+        
+        /**
+         * Emulated frames per second of this job.
+         */
+        public double getFramesPerSecond() {
+            return (time == 0)?0:job.frames*1000000000.0/time;
+        }
+    }
+    
+    
+    private int threads;
+    private long totalFrames;
+    private long wallTime;
+    
+    
+    public NESFarm(int threads) {
+        this.threads = threads;
+    }
+    
+    
+    public NESFarm() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    
+    /**
+     * Runs all jobs and returns their results in the same order.
+     */
+    public List<Result> run(List<Job> jobs) throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<Result>> futures = new ArrayList<Future<Result>>();
+        ArrayList<Result> results = new ArrayList<Result>();
+        
+        long start = System.nanoTime();
+        
+        try {
+            for(final Job job : jobs) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    public Result call() {
+                        return runJob(job);
+                    }
+                }));
+            }
+            
+            for(Future<Result> future : futures)
+                results.add(future.get());
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        wallTime = System.nanoTime() - start;
+        totalFrames = 0;
+        for(Job job : jobs)
+            totalFrames += job.frames;
+        
+        return results;
+    }
+    
+    
+    private static Result runJob(Job job) {
+        try {
+            HeadlessRunner runner = new HeadlessRunner(job.romFile);
+            if(job.inputFile != null) runner.setInput(job.inputFile);
+            
+            int interval = (job.checkpointInterval > 0)?job.checkpointInterval:job.frames;
+            long[] checkpoints = new long[(interval > 0)?job.frames/interval:0];
+            long time = 0;
+            
+            for(int i = 0; i < checkpoints.length; i++) {
+                time += runner.run(interval);
+                checkpoints[i] = runner.getFrameCRC();
+            }
+            time += runner.run(job.frames - checkpoints.length*interval);
+            
+            Result result = new Result(job, time, runner.getFrameCRC(), checkpoints, null);
+            result.cycles = runner.getNES().getCPU().getNumCyclesRan();
+            result.idleCycles = runner.getNES().getCPU().getIdleCyclesSkipped();
+            
+            return result;
+        } catch(Exception e) {
+            return new Result(job, 0, 0, new long[0], e.toString());
+        }
+    }
+    
+    
+    /**
+     * Frames run by all instances of the last run per second of wall time.
+     */
+    public double getFramesPerSecond() {
+        return (wallTime == 0)?0:totalFrames*1000000000.0/wallTime;
+    }
+    
+    
+    public long getWallTime() {
+        return wallTime;
+    }
+    
+    
+    public static void main(String[] args) throws Exception {
+        if(args.length < 3) {
+            System.out.println("usage: NESFarm rom frames instances [threads [input]]");
+            System.exit(1);
+        }
+        
+        File romFile = new File(args[0]);
+        int frames = Integer.parseInt(args[1]);
+        int instances = Integer.parseInt(args[2]);
+        int threads = (args.length > 3)?Integer.parseInt(args[3]):Runtime.getRuntime().availableProcessors();
+        File inputFile = (args.length > 4)?new File(args[4]):null;
+        
+        ArrayList<Job> jobs = new ArrayList<Job>();
+        for(int i = 0; i < instances; i++)
+            jobs.add(new Job(romFile, frames, inputFile));
+        
+        NESFarm farm = new NESFarm(threads);
+        List<Result> results = farm.run(jobs);
+        
+        for(int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            
+            if(result.error != null)
+                System.out.println("instance " + i + ": " + result.error);
+            else
+                System.out.println("instance " + i + ": " + (result.time/1000000) + " ms, frame crc "
+                        + Long.toHexString(result.frameCRC) + ", " + (int)result.getIdlePercentage() + "% idle");
+        }
+        
+        System.out.println(instances + " instances on " + threads + " threads: " + (farm.getWallTime()/1000000)
+                + " ms, " + (int)farm.getFramesPerSecond() + " fps total");
+    }
+}
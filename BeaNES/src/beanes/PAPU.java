@@ -20,7 +20,6 @@
 package beanes;
 
 import beanes.sound.*;
-import javax.sound.sampled.*;
 import java.io.*;
 
 /*
@@ -73,9 +72,7 @@ public class PAPU implements Runnable {
     private TriangleChannel triangle;
     private DMChannel dm;
     
-    private Mixer mixer;
-    private SourceDataLine dataLine;
-    private AudioFormat audioFormat;
+    private AudioSink audio;
     
     private int refreshRate = 10;
     private int cycleRate; // cycles/sample
@@ -106,9 +103,13 @@ public class PAPU implements Runnable {
         0x20, 0x1E
     };
     
-    public PAPU(BeaNES nes) {
+    /**
+     * Samples are only generated if there is an audio sink to take them.
+     */
+    public PAPU(BeaNES nes, AudioSink audio) {
         
         this.nes = nes;
+        this.audio = audio;
         square1 = new SquareChannel(this);
         square2 = new SquareChannel(this);
         noise = new NoiseChannel(this);
@@ -120,22 +121,12 @@ public class PAPU implements Runnable {
         sampleBuffer = new byte[bufferSize]; // 4 for steroo 2 for mono
         bufferIndex = 0;
         
-        mixer = AudioSystem.getMixer(AudioSystem.getMixerInfo()[1]);
-        audioFormat = new AudioFormat(sampleRate, 16, 1, true, false); // 1 for mono 2 for stereo
-        DataLine.Info info = new DataLine.Info(SourceDataLine.class, audioFormat, 44100);
-        
-        try {
-            dataLine = (SourceDataLine)AudioSystem.getLine(info);
-            dataLine.open(audioFormat);
-            dataLine.start();
-            
-        } catch(Exception e) {
-            System.out.println("could not open audio data line");
+        if(audio != null) {
+            thread = new Thread(this);
+            thread.start();
         }
-        
-        thread = new Thread(this);
-        thread.start();
     }
+
     
     public synchronized void run() {
         // do audio looping here
@@ -159,7 +150,7 @@ public class PAPU implements Runnable {
             bufferIndex++;
             if(bufferIndex >= sampleBuffer.length)  {
                 bufferIndex = 0;
-                dataLine.write(sampleBuffer, 0, bufferSize);
+                audio.writeSamples(sampleBuffer, 0, bufferSize);
             }
 
                   
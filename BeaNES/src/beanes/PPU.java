@@ -23,26 +23,60 @@ package beanes;
 import java.util.*;
 import java.awt.image.*;
 import java.io.*;
+import java.nio.*;
 
 
-public class PPU {
+public class PPU implements EventHandler {
     BeaNES nes;
     
-    public static int PPU_MEMORY_SIZE = 0x8000;
-    public static int SPRITE_MEMORY_SIZE = 0x10000;
+    public static int PPU_MEMORY_SIZE = 0x2000;    // CHR RAM
+    public static int SPRITE_MEMORY_SIZE = 0x100;
+    
+    public static final int DOTS_PER_SCANLINE = 341;
+    public static final int SCANLINES_PER_FRAME = 262;
+    public static final int VBLANK_SCANLINE = 241;
+    public static final int PRERENDER_SCANLINE = 261;
+    
+    // dot within a visible scanline at which it gets rendered
+    private static final int HBLANK_DOT = 256;
+    private static final int FRAME_DOTS = SCANLINES_PER_FRAME*DOTS_PER_SCANLINE;
     
     public int HORIZONTAL_MIRRORING = 0;
     public int VERTICAL_MIRRORING = 1;
     
-    public short[] ppuMemory;
-    public short[] spriteMemory;
+    public byte[] ppuMemory;
+    public byte[] spriteMemory;
+    
+    // pattern table page table (1K pages at 0x0000-0x1FFF), set up by the mapper
+    private byte[][] chrPages = new byte[8][];
+    private int[] chrOffsets = new int[8];
+    private boolean[] chrWritable = new boolean[8];
+    
+    // the same pages decoded to one pixel index (0-3) per byte, 64 per tile
+    private byte[][] tilePages = new byte[8][];
+    private int[] tileOffsets = new int[8];
+    private byte[] chrRAMTiles = new byte[0x2000*4];
     
-    private int[] vramMirror;
-    private int[] ntMirror;
+    // the four 1K name tables (two of them only used in four screen mode), and
+    // the table each of the slots at 0x2000, 0x2400, 0x2800 and 0x2C00 points to
+    private byte[][] nameTables = new byte[4][0x400];
+    private byte[][] ntSlots = new byte[4][];
+    private int[] ntMirror = new int[4];
+    private byte[] paletteMemory = new byte[0x20];
     private boolean[] solidBGLine;
     private boolean[] solidSPLine;
     private int[] raster;
     
+    // rgb values of the 32 palette entries at 0x3F00-0x3F1F
+    private int[] colors = new int[32];
+    
+    // sprites on each visible scanline in oam order, rebuilt when oam or the sprite size changes
+    public static final int SPRITES_PER_SCANLINE = 8;
+    private int[][] lineSprites = new int[240][64];
+    private int[] lineSpriteCount = new int[240];
+    private boolean spritesChanged = true;
+    private boolean spriteLimit = true;
+    
     private boolean firstWrite = true;
     private int mirroringMode = -1;
     private short controlRegister1;
@@ -54,9 +88,16 @@ public class PPU {
     private int loopyX;
     private int loopyT;
     private int loopyV;
-    private int scanlineCycles;
     private int scanline;
-    private int vblankWait;
+    private long frameStartDot;
+    private long nextDot;
+    private Scheduler scheduler;
+    
+    private ScanlineListener scanlineListener;
+    private int listenerEvents;
+    private long nextListenerScanline = Scheduler.NEVER;
+    private long nextListenerA12 = Scheduler.NEVER;
+    private int nextListenerLine;
     
     
     private int[] rgbPalette = {
@@ -73,8 +114,86 @@ public class PPU {
     
     public PPU(BeaNES nes) {
         this.nes = nes;
-        ppuMemory = new short[PPU_MEMORY_SIZE];
-        spriteMemory = new short[SPRITE_MEMORY_SIZE];
+        ppuMemory = new byte[PPU_MEMORY_SIZE];
+        spriteMemory = new byte[SPRITE_MEMORY_SIZE];
+        raster = new int[256*256];
+        
+        // nothing to catch up on before the first hard reset
+        nextDot = Scheduler.NEVER;
+        
+        // CHR RAM until a mapper says otherwise
+        mapCHR(0, 0x2000, ppuMemory, chrRAMTiles, 0, true);
+        
+        for(int i = 0; i < colors.length; i++)
+            updateColor(i);
+        
+        scheduler = nes.getScheduler();
+        scheduler.setHandler(Scheduler.EVENT_VBLANK, this);
+        scheduler.setHandler(Scheduler.EVENT_SPRITE0, this);
+        scheduler.setHandler(Scheduler.EVENT_MAPPER_IRQ, this);
+    }
+    
+    
+    /**
+     * Maps length bytes of the pattern tables starting at address to data[offset...].
+     * tiles holds data decoded by decodeTile. The address and length must be
+     * multiples of 0x400.
+     */
+    public void mapCHR(int address, int length, byte[] data, byte[] tiles, int offset, boolean writable) {
+        // render what was drawn with the old pattern tables
+        catchUp(nes.getCPU().getNumCyclesRan());
+        
+        for(int i = 0; i < length; i += 0x400) {
+            int page = (address + i) >> 10;
+            chrPages[page] = data;
+            chrOffsets[page] = offset + i;
+            chrWritable[page] = writable;
+            tilePages[page] = tiles;
+            tileOffsets[page] = (offset + i)*4;
+        }
+    }
+    
+    
+    public byte[] getCHRRAMTiles() {
+        return chrRAMTiles;
+    }
+    
+    
+    /**
+     * Decodes the 16 byte pattern at chr[address...] into 64 pixel indices
+     * at tiles[address*4...], row by row from the top left.
+     */
+    public static void decodeTile(byte[] chr, int address, byte[] tiles) {
+        for(int row = 0; row < 8; row++)
+            decodeTileRow(chr, address + row, tiles);
+    }
+    
+    
+    /**
+     * Decodes the pattern row whose low bitplane is at chr[address].
+     */
+    public static void decodeTileRow(byte[] chr, int address, byte[] tiles) {
+        int lsbAddr = (address & ~0xF) | (address & 7);
+        int patternLSB = chr[lsbAddr] & 0xFF;
+        int patternMSB = chr[lsbAddr + 8] & 0xFF;
+        int pixel = (lsbAddr & ~0xF)*4 + (address & 7)*8;
+        
+        for(int j = 7; j >= 0; j--)
+            tiles[pixel++] = (byte)((((patternMSB>>j)<<1)&2) | ((patternLSB>>j)&1));
+    }
+    
+    
+    /**
+     * Index of the decoded pattern row at patternAddr in its tile page.
+     */
+    private int tileRow(int patternAddr) {
+        return tileOffsets[patternAddr >> 10] + (patternAddr & 0x3F0)*4 + (patternAddr & 7)*8;
+    }
+    
+    
+    private int readCHR(int address) {
+        int page = address >> 10;
+        return chrPages[page][chrOffsets[page] + (address & 0x3FF)] & 0xFF;
     }
     
     public void hardReset() {
@@ -83,31 +202,95 @@ public class PPU {
         solidSPLine = new boolean[256];
         firstWrite = true;
         setMirroringMode(nes.getROM().getMirroringMode());
+        
+        // start at the top of a frame
+        frameStartDot = nes.getCPU().getNumCyclesRan()*3;
+        scanline = 0;
+        nextDot = frameStartDot + HBLANK_DOT;
+        scheduleVBlank();
+        scheduleListener(nes.getCPU().getNumCyclesRan());
     }
     
-    public void setMirroringMode(int mode) {
-        System.out.println("Setting mirroring mode " + mode);
-        if(mirroringMode == mode) return;
-        mirroringMode = mode;
+    /**
+     * Registers, frame timing, sprite ram, name tables, palette and CHR RAM.
+     * The ppu has to be caught up to the cpu.
+     */
+    public void saveState(ByteBuffer out) {
+        out.put((byte)controlRegister1);
+        out.put((byte)controlRegister2);
+        out.put((byte)statusRegister);
+        out.put((byte)sramAddress);
+        out.put((byte)ppuLatch);
+        out.put((byte)(firstWrite?1:0));
+        out.put((byte)mirroringMode);
+        
+        out.put((byte)loopyX);
+        out.putShort((short)loopyT);
+        out.putShort((short)loopyV);
+        out.putShort((short)scanline);
+        out.putLong(frameStartDot);
+        out.putLong(nextDot);
         
-        vramMirror = new int[0x8000];
-        ntMirror = new int[4];
+        out.put(spriteMemory, 0, 0x100);
+        for(int i = 0; i < nameTables.length; i++)
+            out.put(nameTables[i], 0, 0x400);
+        out.put(paletteMemory, 0, 0x20);
         
-        // writeup mirroring
-        writeMirror(0, 0, vramMirror.length);
+        if(nes.getROM().numCHRBanks == 0)
+            out.put(ppuMemory, 0, 0x2000);
+    }
+    
+    
+    public void loadState(ByteBuffer in) {
+        controlRegister1 = (short)(in.get() & 0xFF);
+        controlRegister2 = (short)(in.get() & 0xFF);
+        statusRegister = (short)(in.get() & 0xFF);
+        sramAddress = (short)(in.get() & 0xFF);
+        ppuLatch = (short)(in.get() & 0xFF);
+        firstWrite = in.get() != 0;
+        int mode = in.get();
+        
+        loopyX = in.get();
+        loopyT = in.getShort() & 0xFFFF;
+        loopyV = in.getShort() & 0xFFFF;
+        scanline = in.getShort();
+        frameStartDot = in.getLong();
+        nextDot = in.getLong();
+        
+        in.get(spriteMemory, 0, 0x100);
+        for(int i = 0; i < nameTables.length; i++)
+            in.get(nameTables[i], 0, 0x400);
+        in.get(paletteMemory, 0, 0x20);
+        
+        if(nes.getROM().numCHRBanks == 0) {
+            in.get(ppuMemory, 0, 0x2000);
+            for(int i = 0; i < 0x2000; i += 16)
+                decodeTile(ppuMemory, i, chrRAMTiles);
+        }
         
-        writeMirror(0x3f20, 0x3f00, 0x20);    // color palette mirror
-        writeMirror(0x3f40, 0x3f00, 0x20);    // color palette mirror
-        writeMirror(0x3f80, 0x3f00, 0x20);    // color palette mirror
-        writeMirror(0x3fc0, 0x3f00, 0x20);    // color palette mirror
+        mirroringMode = -1;
+        setMirroringMode(mode);
         
-        writeMirror(0x3000, 0x2000, 0xf00);   // name and attribute table mirrors
-        writeMirror(0x4000, 0, 0x4000);       // mirror of first half
+        for(int i = 0; i < colors.length; i++)
+            updateColor(i);
+        
+        spritesChanged = true;
+        scheduleListener(nes.getCPU().getNumCyclesRan());
+    }
+    
+    
+    public int getMirroringMode() {
+        return mirroringMode;
+    }
+    
+    
+    public void setMirroringMode(int mode) {
+        if(mirroringMode == mode) return;
+        catchUp(nes.getCPU().getNumCyclesRan());
+        mirroringMode = mode;
         
         switch(mode) {
             case ROM.VERTICAL_MIRRORING :
-                writeMirror(0x2800, 0x2000, 0x400);
-                writeMirror(0x2c00, 0x2400, 0x400);
                 ntMirror[0] = 0;
                 ntMirror[1] = 1;
                 ntMirror[2] = 0;
@@ -115,8 +298,6 @@ public class PPU {
                 break;
                 
             case ROM.HORIZONTAL_MIRRORING:
-                writeMirror(0x2400, 0x2000, 0x400);
-                writeMirror(0x2c00, 0x2800, 0x400);
                 ntMirror[0] = 0;
                 ntMirror[1] = 0;
                 ntMirror[2] = 1;
@@ -124,9 +305,6 @@ public class PPU {
                 break;
                 
             case ROM.SINGLESCREEN_MIRRORING:
-                writeMirror(0x2400, 0x2000, 0x400);
-                writeMirror(0x2800, 0x2000, 0x400);
-                writeMirror(0x2c00, 0x2000, 0x400);
                 ntMirror[0] = 0;
                 ntMirror[1] = 0;
                 ntMirror[2] = 0;
@@ -134,9 +312,6 @@ public class PPU {
                 break;
                 
             case ROM.SINGLESCREEN_MIRRORING2:
-                writeMirror(0x2400, 0x2400, 0x400);
-                writeMirror(0x2800, 0x2400, 0x400);
-                writeMirror(0x2c00, 0x2400, 0x400);
                 ntMirror[0] = 1;
                 ntMirror[1] = 1;
                 ntMirror[2] = 1;
@@ -150,80 +325,280 @@ public class PPU {
                 ntMirror[3] = 3;
                 break;
         }
+        
+        for(int i = 0; i < 4; i++)
+            ntSlots[i] = nameTables[ntMirror[i]];
     }
     
     
     /*
      * NTSC
-     * 262 scanlines per frame
+     * 262 scanlines per frame, 341 ppu cycles (dots) per scanline, 3 dots per cpu cycle
      * visible area 256x224
      *
      * 240 scanlines are on screen (top 8 and bottom 8 are chopped off)
-     * Takes 3 scanlines worth of cpu cycles to enter VBLANK
-     * 20 scanlines exist before next frame can be
+     * VBLANK starts on scanline 241
+     * scanline 261 is the dummy (pre-render) scanline before the next frame
      *
+     * Rendering is lazy: the ppu remembers the next scanline it has to work on and
+     * only catches up to the cpu when one of its registers is touched, on sprite DMA,
+     * when the mapper switches pattern tables or mirroring, and at vblank. A frame
+     * without mid-frame raster effects is rendered in one pass at vblank.
+     */
+    public void handleEvent(int type, long time) {
+        if(type == Scheduler.EVENT_MAPPER_IRQ)
+            notifyListener(time);
+        else
+            catchUp(time);
+    }
+    
+    
+    /**
+     * Runs the ppu up to the given cpu cycle.
+     */
+    public void catchUp(long cycle) {
+        long dot = cycle*3;
+        
+        if(nextDot > dot) return;
+        
+        while(nextDot <= dot)
+            runScanline();
+        
+        scheduleVBlank();
+    }
+    
+    
+    /**
+     * Does the work due at nextDot and moves on to the next scanline that has work.
      */
-    public int runCycles(int cycles) {
-        int cyclesRan = cycles;
+    private void runScanline() {
         
-        while(cycles > 0) {
+        // render scanline if bg visibility or sp visibility is set
+        if(scanline < 240) {
+            if((controlRegister2 & (0x08 | 0x10)) != 0) {
+                renderScanline();
+            }
             
-            scanlineCycles++;
+            scanline = (scanline == 239)?VBLANK_SCANLINE:scanline+1;
+        }
+        
+        // postprocessing for end of frame
+        else if(scanline == VBLANK_SCANLINE) {
+            statusRegister |= 0x80;         // signal vblank
             
-            if(scanlineCycles==341) {
-                scanlineCycles = 0;
-                
-                
-                // wait 20 dummy scanlines
-                if(vblankWait < 19) {
-                    vblankWait++;
-                }
-                
-                else {
-                    
-                    // handle if start of frame (dummy scanline)
-                    if(scanline == 0) {
-                        // copy temp address to actual
-                        if((controlRegister2 & (0x08 | 0x10)) != 0) {
-                            loopyV = loopyT;
-                        }
-                        // reset sprite0hit and vblank status flags
-                        statusRegister &= 0x7F;
-                        statusRegister &= 0xBF;
-                    }
-                    
-                    
-                    // render scanline if bg visibility or sp visibility is set
-                    if (scanline < 240 && (controlRegister2 & (0x08 | 0x10)) != 0) {
-                        renderScanline();
-                    }
-                    
-                    // postprocessing for end of frame
-                    if(scanline == 243) {
-                        statusRegister |= 0x80;         // signal vblank
-                        vblankWait = 0;                             // reset wait counter
-                        scanline = -1;
-                        
-                        // request IRQ if allowed
-                        if(((controlRegister1 >> 7)&1) != 0)
-                            nes.getCPU().requestIRQ(nes.getCPU().IRQ_NMI);
-                        nes.getVideoOutput().renderImage(raster);   // render the image
-                        nes.getClock().signalVBlank();
-
-                    }
-                    
-                    scanline++;
-                }
-                
+            // request IRQ if allowed
+            if(((controlRegister1 >> 7)&1) != 0)
+                nes.getCPU().requestIRQ(nes.getCPU().IRQ_NMI);
+            if(nes.getFrameSink() != null)
+                nes.getFrameSink().renderImage(raster); // render the image
+            nes.getClock().signalVBlank();
+            
+            scanline = PRERENDER_SCANLINE;
+        }
+        
+        // handle start of frame (dummy scanline)
+        else {
+            // copy temp address to actual
+            if((controlRegister2 & (0x08 | 0x10)) != 0) {
+                loopyV = loopyT;
+            }
+            // reset sprite0hit and vblank status flags
+            statusRegister &= 0x7F;
+            statusRegister &= 0xBF;
+            
+            frameStartDot += SCANLINES_PER_FRAME*DOTS_PER_SCANLINE;
+            scanline = 0;
+            
+            scheduleSprite0();
+        }
+        
+        nextDot = frameStartDot + scanline*DOTS_PER_SCANLINE + ((scanline < 240)?HBLANK_DOT:1);
+    }
+    
+    
+    /**
+     * The end of the frame is the only point the ppu has to be caught up at
+     * if the game leaves it alone.
+     */
+    private void scheduleVBlank() {
+        long dot = frameStartDot + VBLANK_SCANLINE*DOTS_PER_SCANLINE + 1;
+        
+        if(scanline > VBLANK_SCANLINE)
+            dot += SCANLINES_PER_FRAME*DOTS_PER_SCANLINE;
+        
+        long time = (dot + 2)/3;
+        
+        if(scheduler.getEventTime(Scheduler.EVENT_VBLANK) != time)
+            scheduler.schedule(Scheduler.EVENT_VBLANK, time);
+    }
+    
+    
+    /**
+     * The first cpu cycle after the given one that can read a different value
+     * from the status register if the registers are left alone: the start of
+     * vblank, the pre-render line clearing the flags and, while rendering, every
+     * scanline (sprite 0 hit and sprite overflow).
+     */
+    public long getNextStatusChange(long cycle) {
+        long dot = cycle*3;
+        long start = frameStartDot;
+        boolean rendering = (controlRegister2 & (0x08 | 0x10)) != 0;
+        
+        while(true) {
+            long next = start + PRERENDER_SCANLINE*DOTS_PER_SCANLINE + 1;
+            
+            if(start + VBLANK_SCANLINE*DOTS_PER_SCANLINE + 1 > dot)
+                next = start + VBLANK_SCANLINE*DOTS_PER_SCANLINE + 1;
+            
+            if(rendering && start + 239*DOTS_PER_SCANLINE + HBLANK_DOT > dot) {
+                long line = (dot < start + HBLANK_DOT)?0:(dot - start - HBLANK_DOT)/DOTS_PER_SCANLINE + 1;
+                next = start + line*DOTS_PER_SCANLINE + HBLANK_DOT;
             }
             
-            cycles--;
+            if(next > dot)
+                return (next + 2)/3;
+            
+            start += SCANLINES_PER_FRAME*DOTS_PER_SCANLINE;
+        }
+    }
+    
+    
+    /**
+     * Sets the mapper to tell about scanlines and/or A12 rises (a combination of
+     * ScanlineListener.SCANLINE and A12_RISE), null for none.
+     */
+    public void setScanlineListener(ScanlineListener listener, int events) {
+        scanlineListener = listener;
+        listenerEvents = events;
+        scheduleListener(nes.getCPU().getNumCyclesRan());
+    }
+    
+    
+    private void notifyListener(long time) {
+        if(time == nextListenerScanline)
+            scanlineListener.scanline(nextListenerLine, time);
+        
+        if(time == nextListenerA12 && scanlineListener != null)
+            scanlineListener.a12Rise(time);
+        
+        scheduleListener(time);
+    }
+    
+    
+    /**
+     * Schedules the listener's next event after the given cpu cycle, nothing
+     * happens while rendering is off.
+     */
+    private void scheduleListener(long cycle) {
+        nextListenerScanline = Scheduler.NEVER;
+        nextListenerA12 = Scheduler.NEVER;
+        
+        if(scanlineListener == null || (controlRegister2 & (0x08 | 0x10)) == 0) {
+            scheduler.cancel(Scheduler.EVENT_MAPPER_IRQ);
+            return;
+        }
+        
+        if((listenerEvents & ScanlineListener.SCANLINE) != 0) {
+            long dot = getNextScanlineDot(cycle, HBLANK_DOT);
+            
+            nextListenerScanline = (dot + 2)/3;
+            nextListenerLine = (int)(((dot - HBLANK_DOT - frameStartDot) % FRAME_DOTS + FRAME_DOTS) % FRAME_DOTS)/DOTS_PER_SCANLINE;
         }
         
-        return cyclesRan++;
+        int a12Dot = getA12RiseDot();
+        if((listenerEvents & ScanlineListener.A12_RISE) != 0 && a12Dot >= 0)
+            nextListenerA12 = (getNextScanlineDot(cycle, a12Dot) + 2)/3;
+        
+        long time = Math.min(nextListenerScanline, nextListenerA12);
+        
+        if(time == Scheduler.NEVER)
+            scheduler.cancel(Scheduler.EVENT_MAPPER_IRQ);
+        else if(scheduler.getEventTime(Scheduler.EVENT_MAPPER_IRQ) != time)
+            scheduler.schedule(Scheduler.EVENT_MAPPER_IRQ, time);
+    }
+    
+    
+    /**
+     * A register write may move the listener's next event. One that is already
+     * due is left alone, it reschedules with the new registers when it runs.
+     */
+    private void rescheduleListener(long cycle) {
+        if(scheduler.getEventTime(Scheduler.EVENT_MAPPER_IRQ) > cycle)
+            scheduleListener(cycle);
+    }
+    
+    
+    /**
+     * The dot of each fetching scanline at which A12 goes high after being low
+     * long enough for a mapper to count it, -1 if it does not. The first
+     * sprite pattern fetch (dot 260) rises if only the sprites use 0x1000,
+     * the fetch of the next line's first tile (dot 324) if only the background
+     * does. With 8x16 sprites the unused sprite slots fetch from 0x1000.
+     */
+    private int getA12RiseDot() {
+        boolean background = (controlRegister1 & 0x10) != 0;
+        boolean sprites = (controlRegister1 & (0x08 | 0x20)) != 0;
+        
+        if(sprites && !background)
+            return 260;
+        if(background && !sprites)
+            return 324;
+        
+        return -1;
+    }
+    
+    
+    /**
+     * The cpu moving the vram address up over 0x1000 raises A12 too, unless the
+     * ppu is rendering and owns the address bus.
+     */
+    private void checkAddressA12(int oldAddress) {
+        if((oldAddress & 0x1000) != 0 || (loopyV & 0x1000) == 0 || (listenerEvents & ScanlineListener.A12_RISE) == 0)
+            return;
+        
+        if((controlRegister2 & (0x08 | 0x10)) == 0 || scanline == PRERENDER_SCANLINE)
+            scanlineListener.a12Rise(nes.getCPU().getNumCyclesRan());
+    }
+    
+    
+    /**
+     * The first ppu dot after the given cpu cycle at which one of the scanlines
+     * that fetch patterns (the visible ones and the pre-render line) reaches
+     * the given dot.
+     */
+    private long getNextScanlineDot(long cycle, int dot) {
+        long now = cycle*3;
+        
+        // the pre-render line of the last frame may still be ahead
+        long start = frameStartDot - FRAME_DOTS;
+        
+        while(true) {
+            long line = (now < start + dot)?0:(now - start - dot)/DOTS_PER_SCANLINE + 1;
+            
+            if(line >= 240 && line <= PRERENDER_SCANLINE)
+                line = PRERENDER_SCANLINE;
+            
+            if(line <= PRERENDER_SCANLINE)
+                return start + line*DOTS_PER_SCANLINE + dot;
+            
+            start += FRAME_DOTS;
+        }
     }
     
     
+    /**
+     * Schedules the first scanline sprite 0 can hit the background on.
+     */
+    private void scheduleSprite0() {
+        int line = (spriteMemory[0] & 0xFF)+1;
+        
+        if(line >= 240 || (controlRegister2 & (0x08 | 0x10)) != 0x18) {
+            scheduler.cancel(Scheduler.EVENT_SPRITE0);
+            return;
+        }
+        
+        scheduler.schedule(Scheduler.EVENT_SPRITE0, (frameStartDot + line*DOTS_PER_SCANLINE + HBLANK_DOT + 2)/3);
+    }
     
     
     public void renderScanline() {
@@ -284,11 +659,10 @@ public class PPU {
         int atAddr = 0x2000 + (loopyV&0xC00)+ 0x3C0 + ((indexY&0xFFFC)<<1) + (indexX>>2); // get attribute address
         
         int attribute = 0;
-        int colorAddr = 0;
         int color = 0;
         int patternAddr = 0;
-        int patternMSB = 0;
-        int patternLSB = 0;
+        byte[] tiles;
+        int pixel;
         int pattern = 0;
         int col = -loopyX;
         int point;
@@ -296,33 +670,30 @@ public class PPU {
         // determine attribute (msb of color pattern)
         if((indexY&2) == 0) {
             if((indexX&2) == 0)
-                attribute = (ppuMemory[vramMirror[atAddr]]&3) <<2;
+                attribute = (readNameTable(atAddr)&3) <<2;
             else
-                attribute = (ppuMemory[vramMirror[atAddr]]&0xC);
+                attribute = (readNameTable(atAddr)&0xC);
         } else {
             if((indexX&2) == 0)
-                attribute = (ppuMemory[vramMirror[atAddr]]&0x30) >> 2;
+                attribute = (readNameTable(atAddr)&0x30) >> 2;
             else
-                attribute = (ppuMemory[vramMirror[atAddr]]&0xC0) >> 4;
+                attribute = (readNameTable(atAddr)&0xC0) >> 4;
         }
         for(int i = 0; i < solidBGLine.length; i++) solidBGLine[i] = false;
         
         for(int i = 0; i < 33; i++) {
             // determine pattern (lsb of color patterns)
-            patternAddr = (((controlRegister1>>4)&1)*0x1000) + (ppuMemory[vramMirror[ntAddr]]<<4)+((loopyV&0x7000)>>12);
-            patternLSB = ppuMemory[vramMirror[patternAddr]];
-            patternMSB = ppuMemory[vramMirror[patternAddr+8]];
+            patternAddr = (((controlRegister1>>4)&1)*0x1000) + (readNameTable(ntAddr)<<4)+((loopyV&0x7000)>>12);
+            tiles = tilePages[patternAddr >> 10];
+            pixel = tileRow(patternAddr);
             
             // iterate through each pixel on line (from left to right)
-            for(int j = 7; j >= 0; j--) {
-                // merge the pattern (lbs of color pattern)
-                pattern = (((patternMSB>>j)<<1)&2) | ((patternLSB>>j)&1);
+            for(int j = 0; j < 8; j++) {
+                // pattern (lbs of color pattern)
+                pattern = tiles[pixel + j];
                 
-                // get the address of the color, handles if transparent
-                colorAddr = (pattern == 0)?0x3F10: 0x3F00 + (attribute | pattern);
-                
-                // get the color from color address
-                color = rgbPalette[ppuMemory[vramMirror[colorAddr]]];
+                // get the color, handles if transparent
+                color = colors[(pattern == 0)?0x10:(attribute | pattern)];
                 
                 // get the point/pixel location for image rasterization
                 point = scanline*256 + col;
@@ -361,15 +732,15 @@ public class PPU {
                 
                 if ((indexY & 0x0002) == 0)
                     if ((indexX & 0x0002) == 0)
-                        attribute = (ppuMemory[vramMirror[atAddr]] & 0x03) << 2;
+                        attribute = (readNameTable(atAddr) & 0x03) << 2;
                     else
-                        attribute = (ppuMemory[vramMirror[atAddr]] & 0x0C);
+                        attribute = (readNameTable(atAddr) & 0x0C);
                 
                 else
                     if ((indexX & 0x0002) == 0)
-                        attribute = (ppuMemory[vramMirror[atAddr]] & 0x30) >> 2;
+                        attribute = (readNameTable(atAddr) & 0x30) >> 2;
                     else
-                        attribute = (ppuMemory[vramMirror[atAddr]] & 0xC0) >> 4;
+                        attribute = (readNameTable(atAddr) & 0xC0) >> 4;
                 
                 
             } // Dual-Tile Boundary Crossed
@@ -381,14 +752,49 @@ public class PPU {
     }
     
     
+    /**
+     * Sorts the sprites into the scanlines they show up on.
+     */
+    private void evaluateSprites() {
+        int height = ((controlRegister1 & 0x20) != 0)?16:8;
+        int y;
+        
+        for(int line = 0; line < 240; line++) lineSpriteCount[line] = 0;
+        
+        for(int i = 0; i < 64; i++) {
+            y = (spriteMemory[i*4] & 0xFF)+1;
+            
+            for(int line = y; line < y+height && line < 240; line++)
+                lineSprites[line][lineSpriteCount[line]++] = i;
+        }
+        
+        spritesChanged = false;
+    }
+    
+    
+    public boolean isSpriteLimit() {
+        return spriteLimit;
+    }
+    
+    
+    /**
+     * Only draws the first 8 sprites on a scanline like the real ppu does
+     * (turning it off gets rid of the flicker).
+     */
+    public void setSpriteLimit(boolean value) {
+        catchUp(nes.getCPU().getNumCyclesRan());
+        spriteLimit = value;
+    }
+    
+    
     public void renderSprites() {
         int x;
         int y;
         int patternIndex;
         int pattern;
         int patternAddr;
-        int patternMSB;
-        int patternLSB;
+        byte[] tiles;
+        int pixel;
         int color;
         int colorH;
         int colorAddr;
@@ -399,19 +805,29 @@ public class PPU {
         int line;
         int col;
         boolean bgPriority;
-        int numDetected = 0;
+        int numDetected;
         int point;
         int pointX;
         int height = ((controlRegister1 & 0x20) != 0)?16:8;
         
+        if(spritesChanged) evaluateSprites();
+        
+        numDetected = lineSpriteCount[scanline];
+        
         statusRegister &= 0xDF;      // gets flaged only if more than 8 sprites on a scanline
+        if(numDetected > SPRITES_PER_SCANLINE) {
+            statusRegister |= 0x20;
+            if(spriteLimit) numDetected = SPRITES_PER_SCANLINE;
+        }
         
         for(int i = 0; i < solidSPLine.length; i++) solidSPLine[i] = false;
-        for(int i = 0; i < 64; i++) {
-            y = spriteMemory[i*4]+1;                    // location where sprite is to be placed (Y)
-            patternIndex = spriteMemory[i*4+1];         // pattern index
-            attributes = spriteMemory[i*4+2];           // attributes for sprite
-            x = spriteMemory[i*4+3];                    // location where sprite is to be placed (X)
+        for(int n = 0; n < numDetected; n++) {
+            int i = lineSprites[scanline][n];
+            
+            y = (spriteMemory[i*4] & 0xFF)+1;           // location where sprite is to be placed (Y)
+            patternIndex = spriteMemory[i*4+1] & 0xFF;  // pattern index
+            attributes = spriteMemory[i*4+2] & 0xFF;    // attributes for sprite
+            x = spriteMemory[i*4+3] & 0xFF;             // location where sprite is to be placed (X)
             
             // determine if flipping is neeed
             vflip = (attributes & 0x80) != 0;
@@ -424,18 +840,11 @@ public class PPU {
             
             line = (scanline - y);                  // number of scanlines from current scanline
             
-            // don't render if it is below current scanline, not within the height range
-            if(line < 0 || line >= height) continue;
             line = (vflip)?((height-1)-line):line;  // flip if needed
             
-            
-            if(++numDetected > 8) statusRegister |= 0x20;
-            
             // 8x8 tiles
             if(height == 8) {
                 patternAddr = ((controlRegister1 >> 3)&1)*0x1000 + patternIndex*0x10+line;
-                patternLSB = ppuMemory[vramMirror[patternAddr]];
-                patternMSB = ppuMemory[vramMirror[patternAddr+8]];
             }
             
             // 8x16 tiles
@@ -451,11 +860,11 @@ public class PPU {
                 
                 
                 patternAddr +=line&7;
-                
-                patternLSB = ppuMemory[vramMirror[patternAddr]];
-                patternMSB = ppuMemory[vramMirror[patternAddr+8]];
             }
             
+            tiles = tilePages[patternAddr >> 10];
+            pixel = tileRow(patternAddr);
+            
             
             // go through each pixel for scanline in sprite
             for(int j = 7; j >= 0; j--) {
@@ -469,9 +878,9 @@ public class PPU {
                 if(point >= raster.length && point < 240*256) continue;    // large point
                 
                 // determine color
-                pattern = (((patternMSB>>col)&1)<<1) | ((patternLSB>>col)&1);
+                pattern = tiles[pixel + 7 - col];
                 colorAddr = (colorH | pattern);
-                color = rgbPalette[ppuMemory[vramMirror[0x3F10 + colorAddr]]];
+                color = colors[0x10 + colorAddr];
                 
                 // check for sprite hit
                 if(i == 0 && solidBGLine[pointX] && pattern != 0 && (controlRegister2&0x08) != 0) {
@@ -505,6 +914,8 @@ public class PPU {
     public short externalRead(int address) {
         short value = 0;
         
+        catchUp(nes.getCPU().getNumCyclesRan());
+        
         switch(address) {
             // ppu control register 1
             case 0x2000:
@@ -528,7 +939,7 @@ public class PPU {
                 
                 // sprite ram i/o register
             case 0x2004:
-                value = spriteMemory[sramAddress];
+                value = (short)(spriteMemory[sramAddress] & 0xFF);
                 sramAddress++;
                 sramAddress &= 0xFF;
                 break;
@@ -536,8 +947,12 @@ public class PPU {
                 
                 // vram i/o register
             case 0x2007:
+                int oldAddress = loopyV;
                 value = ppuLatch;
                 ppuLatch = readVRAM();
+                
+                if(scanlineListener != null)
+                    checkAddressA12(oldAddress);
                 break;
                 
                 
@@ -549,19 +964,31 @@ public class PPU {
     
     
     public void externalWrite(int address, short value) {
+        long cycle = nes.getCPU().getNumCyclesRan();
+        int oldAddress = loopyV;
+        
+        catchUp(cycle);
+        
         switch(address) {
             
             // ppu control register 1
             case 0x2000:
+                if(((controlRegister1 ^ value) & 0x20) != 0) spritesChanged = true;
                 controlRegister1 = value;
                 loopyT &= 0xF3FF;           // t:---- 00-- ---- ---- (clear bits 10,11= temporary refresh address)
                 loopyT |= (value&3)<<10;    // t:---- XX-- ---- ----
+                
+                if(scanlineListener != null)
+                    rescheduleListener(cycle);
                 break;
                 
                 
                 // ppu control register 2
             case 0x2001:
                 controlRegister2 = value;
+                
+                if(scanlineListener != null)
+                    rescheduleListener(cycle);
                 break;
                 
                 
@@ -579,7 +1006,8 @@ public class PPU {
                 
                 // sprite ram i/o register
             case 0x2004:
-                spriteMemory[sramAddress] = value;
+                spriteMemory[sramAddress] = (byte)value;
+                spritesChanged = true;
                 sramAddress++;
                 sramAddress &= 0xFF;
                 break;
@@ -613,6 +1041,9 @@ public class PPU {
                     loopyT &= 0xFF00;           // t:---- ---- 0000 0000 (clear bits 0,1,2,3,4,5,6,7)
                     loopyT |= value;            // t:0000 0000 XXXX XXXX
                     loopyV = loopyT;            // copy temp to real address
+                    
+                    if(scanlineListener != null)
+                        checkAddressA12(oldAddress);
                 }
                 
                 firstWrite = !firstWrite;
@@ -621,42 +1052,80 @@ public class PPU {
                 // vram i/o register
             case 0x2007:
                 writeVRAM(value);
+                
+                if(scanlineListener != null)
+                    checkAddressA12(oldAddress);
                 break;
                 
                 // sprite dma
             case 0x4014:
-                spriteMemory[sramAddress] = value;
-                int baseAddress = value * 0x100;
-                short data;
-                
-                for(int i = sramAddress; i <= 0xFF; i++) {
-                    data = nes.getMapper().read(baseAddress + i);
-                    spriteMemory[i] = data;
-                }
+                spriteDMA(value);
                 break;
         }
     }
     
     
+    private int readNameTable(int address) {
+        return ntSlots[(address >> 10) & 3][address & 0x3FF] & 0xFF;
+    }
+    
+    
+    /**
+     * Copies the 256 bytes of the given cpu page to sprite ram starting at sramAddress,
+     * the cpu is halted for 513 cycles (514 when started on an odd cycle).
+     */
+    private void spriteDMA(int page) {
+        CPU cpu = nes.getCPU();
+        int baseAddress = page * 0x100;
+        int length = 0x100 - sramAddress;
+        
+        cpu.read(baseAddress, spriteMemory, sramAddress, length);
+        cpu.read(baseAddress + length, spriteMemory, 0, sramAddress);
+        spritesChanged = true;
+        
+        cpu.stall(513 + (int)(cpu.getNumCyclesRan() & 1));
+    }
+    
+    
     public void writeVRAM(short value) {
-        int address = vramMirror[loopyV];
+        int address = loopyV & 0x3FFF;
         
-        ppuMemory[address] = value;
+        if(address < 0x2000) {
+            int page = address >> 10;
+            
+            // CHR ROM cannot be written to
+            if(chrWritable[page]) {
+                chrPages[page][chrOffsets[page] + (address & 0x3FF)] = (byte)value;
+                decodeTileRow(chrPages[page], chrOffsets[page] + (address & 0x3FF), tilePages[page]);
+            }
+        } else if(address < 0x3F00) {
+            ntSlots[(address >> 10) & 3][address & 0x3FF] = (byte)value;
+        } else {
+            paletteMemory[address & 0x1F] = (byte)value;
+            updateColor(address & 0x1F);
+        }
         loopyV += (((controlRegister1 >> 2)&1) == 0)?1:32;
     }
     
     
+    private void updateColor(int index) {
+        colors[index] = rgbPalette[paletteMemory[index] & 0x3F];
+    }
+    
+    
     public short readVRAM() {
-        short value = ppuMemory[vramMirror[loopyV]];
+        int address = loopyV & 0x3FFF;
+        short value;
+        
+        if(address < 0x2000)
+            value = (short)readCHR(address);
+        else if(address < 0x3F00)
+            value = (short)readNameTable(address);
+        else
+            value = (short)(paletteMemory[address & 0x1F] & 0xFF);
         
         loopyV += (((controlRegister1 >> 2)&1) == 0)?1:32;
         
         return value;
     }
-    
-    
-    public void writeMirror(int src, int dest, int length) {
-        for(int i=0; i < length; i++)
-            vramMirror[src+i] = dest + i;
-    }
 }
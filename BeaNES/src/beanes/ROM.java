@@ -21,6 +21,11 @@ package beanes;
 
 import beanes.mappers.*;
 import java.io.*;
+import java.lang.ref.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
 
 
 public class ROM {
@@ -46,9 +51,22 @@ public class ROM {
     
     
     private File romFile;
+    private String entryName;       // rom in the zip archive romFile, null for plain files
     private BeaNES nes;
-    private short rom[][];
-    private short vrom[][];
+    private byte rom[][];
+    private byte vrom[][];
+    private byte vromTiles[][];
+    
+    private static class Banks {
+        byte[][] rom;
+        byte[][] vrom;
+        byte[][] vromTiles;
+    }
+    
+    private static HashMap<String, SoftReference<Banks>> sharedBanks = new HashMap<String, SoftReference<Banks>>();
+    
+    // index and header database consulted for overrides when loading, may be null
+    private static ROMLibrary library;
     
     public int numPRGBanks = 0;
     public int numCHRBanks = 0;
@@ -64,8 +82,17 @@ public class ROM {
     
     
     public ROM(BeaNES nes, File romFile) {
+        this(nes, romFile, null);
+    }
+    
+    
+    /**
+     * A rom in a zip archive.
+     */
+    public ROM(BeaNES nes, File zipFile, String entryName) {
         this.nes = nes;
-        this.romFile = romFile;
+        this.romFile = zipFile;
+        this.entryName = entryName;
         
         for(int i=0;i<92;i++)
             mapperNames[i] = "Unknown Mapper";
@@ -111,99 +138,63 @@ public class ROM {
     public void load() {
         // load file into memory
         // fetch header information
-        System.out.println("Loading ROM file " + romFile.getName());
-        int i = 0;
-        int read = 0;
-        
-        
+        System.out.println("Loading ROM file " + getName());
         
         try {
             
-            FileInputStream in = new FileInputStream(romFile);
-            
-            short[] romData = new short[(int)romFile.length()+1];
-            
-            while(read > -1) {
-                read = in.read();
-                
-                if(read == -1)
-                    break;
-                
-                romData[i] = (short)read;
-                i++;
-            }
-            System.out.println("ROM Size " + (romFile.length()) + "bytes");
+            ByteBuffer romData = (entryName == null)?map(romFile):readZipEntry(romFile, entryName);
+            System.out.println("ROM Size " + romData.limit() + "bytes");
             
+            ROMHeader header = ROMHeader.parse(romData);
+            if(header != null && !header.fit(romData.limit()))
+                header = null;
             
             // check to see if it is an iNES mapper format
-            if(romData[0] == 0x4e && romData[1] == 0x45 && romData[2] == 0x53 && romData[3] == 0x1a) {
+            if(header != null) {
                 
                 
-                numPRGBanks = romData[4];
+                numPRGBanks = (header.prgSize + 0x3FFF)/0x4000;
                 
-                numCHRBanks = romData[5]*2;
+                numCHRBanks = (header.chrSize + 0xFFF)/0x1000;
                 
-                trainer = (romData[6]&4)!= 0;
+                trainer = header.trainer;
                 
-                mapperType = (romData[6]>>4)|(romData[7]&0xF0);
+                mapperType = header.mapper;
                 
-                mirrorMode = ((romData[6]&1) != 0)?1:0;
+                mirrorMode = header.mirroring;
                 
-                fourscreenMode = (romData[6]&8)!=0;
+                fourscreenMode = header.fourScreen;
                 
                 
-                int offset = 16;
-                rom = new short[numPRGBanks][0x4000];
-                vrom = new short[numCHRBanks][0x1000];
+                System.out.println(header.nes2?"NES 2.0 formatted ROM":"iNES formatted ROM");
                 
-                System.out.println("iNES formatted ROM");
-                System.out.println("Mapper " + mapperType + ": " + getMapperName());
-                System.out.println("Mirror Mode " + mirrorMode + ": " + mirrorDescriptions[mirrorMode]);
-                System.out.println("Four Screen Mode " + (fourscreenMode?"true":false));
+                // the banks are never written to, so instances running the same file share them
+                String key = romFile.getAbsolutePath() + ":" + entryName + ":" + romFile.length() + ":" + romFile.lastModified();
+                Banks banks = getSharedBanks(key);
                 
-                System.out.println("Loading PRG ROM Banks");
+                // views of the mapping, it is let go of once the banks are copied out
+                ByteBuffer prgData = slice(romData, header.getPRGOffset(), header.prgSize);
+                ByteBuffer chrData = slice(romData, header.getPRGOffset() + header.prgSize, header.chrSize);
                 
-                for (i = 0; i < numPRGBanks; i++) {
-                    for(int j = 0; j < 0x4000; j++) {
-                        if(offset+j >= romData.length)
-                            break;
-                        
-                        rom[i][j] = romData[offset+j];
-                    }
-                    
-                    offset += 0x4000;
+                if(banks != null) {
+                    rom = banks.rom;
+                    vrom = banks.vrom;
+                    vromTiles = banks.vromTiles;
+                } else {
+                    loadBanks(prgData, chrData);
+                    putSharedBanks(key);
                 }
                 
+                applyOverride(prgData, chrData);
                 
-                System.out.println("Loading CHR ROM Banks");
-                
-                for (i = 0; i < numCHRBanks; i++) {
-                    for(int j = 0; j < 0x1000; j++) {
-                        if(offset+j >= romData.length)
-                            break;
-                        
-                        vrom[i][j] = romData[offset+j];
-                    }
-                    
-                    offset+= 0x1000;
-                    
-                    for(int k = 0; k < 0x100; k++) {
-                        short[] data = new short[16];
-                        
-                        for(int n = 0; n < 16; n++) {
-                            data[n] = vrom[i][k*16 + n];
-                        }
-                        
-                    }
-                    
-                }
+                System.out.println("Mapper " + mapperType + ": " + getMapperName());
+                System.out.println("Mirror Mode " + mirrorMode + ": " + mirrorDescriptions[mirrorMode]);
+                System.out.println("Four Screen Mode " + (fourscreenMode?"true":false));
                 
-                switch(mapperType) {
-                    case 2: memoryMapper = new UNIROMMapper(nes); break;
-                    case 3: memoryMapper = new CNROMMapper(nes); break;
-                    case 7: memoryMapper = new AOROMMapper(nes); break;
-                    case 66: memoryMapper = new GNROMMapper(nes); break;
-                    default: memoryMapper = new NESMapper(nes); break;
+                memoryMapper = MapperRegistry.createMapper(mapperType, nes);
+                if(memoryMapper == null) {
+                    System.out.println("Mapper " + mapperType + " (" + getMapperName() + ") is not supported, using mapper 0");
+                    memoryMapper = new NESMapper(nes);
                 }
 
                 memoryMapper.loadROM(this);
@@ -219,19 +210,157 @@ public class ROM {
         }
     }
     
-    public short[] getROMBank(int bank) {
+    
+    /**
+     * Takes the mapper and mirroring from the library's database if it knows
+     * the rom, for roms with bad headers.
+     */
+    private void applyOverride(ByteBuffer prgData, ByteBuffer chrData) {
+        ROMLibrary library = getLibrary();
+        
+        if(library == null || !library.hasOverrides())
+            return;
+        
+        ROMLibrary.Entry entry = library.find(romFile, entryName);
+        ROMLibrary.HeaderOverride override = library.getOverride((entry != null)?entry.crc:ROMLibrary.crc(prgData, chrData));
+        
+        if(override == null)
+            return;
+        
+        System.out.println("Using database header" + ((override.name == null)?"":" of " + override.name));
+        mapperType = override.mapper;
+        
+        if(override.mirroring == FOURSCREEN_MIRRORING)
+            fourscreenMode = true;
+        else if(override.mirroring >= 0) {
+            mirrorMode = override.mirroring;
+            fourscreenMode = false;
+        }
+    }
+    
+    
+    public static synchronized void setLibrary(ROMLibrary value) {
+        library = value;
+    }
+    
+    
+    public static synchronized ROMLibrary getLibrary() {
+        return library;
+    }
+    
+    
+    private static ByteBuffer readZipEntry(File zipFile, String entryName) throws IOException {
+        ZipFile zip = new ZipFile(zipFile);
+        
+        try {
+            ZipEntry entry = zip.getEntry(entryName);
+            
+            if(entry == null)
+                throw new IOException(zipFile.getName() + " has no " + entryName);
+            
+            return ROMLibrary.readEntry(zip, entry);
+        } finally {
+            zip.close();
+        }
+    }
+    
+    
+    /**
+     * Maps a file read only. The mapping stays valid after the file is closed.
+     */
+    public static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        
+        try {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+        } finally {
+            in.close();
+        }
+    }
+    
+    
+    /**
+     * A read only view of length bytes of data starting at offset, shorter if
+     * the file is cut off.
+     */
+    static ByteBuffer slice(ByteBuffer data, int offset, int length) {
+        ByteBuffer slice = data.duplicate();
+        
+        slice.position(Math.min(offset, data.limit()));
+        slice.limit((int)Math.min((long)offset + length, data.limit()));
+        
+        return slice.slice().asReadOnlyBuffer();
+    }
+    
+    
+    /**
+     * Copies the banks out of the mapped file for the cpu and ppu page tables.
+     */
+    private void loadBanks(ByteBuffer prgData, ByteBuffer chrData) {
+        int i;
+        ByteBuffer prg = prgData.duplicate();
+        ByteBuffer chr = chrData.duplicate();
+        rom = new byte[numPRGBanks][0x4000];
+        vrom = new byte[numCHRBanks][0x1000];
+        vromTiles = new byte[numCHRBanks][0x4000];
+        
+        System.out.println("Loading PRG ROM Banks");
+        
+        for (i = 0; i < numPRGBanks; i++)
+            prg.get(rom[i], 0, Math.min(0x4000, prg.remaining()));
+        
+        
+        System.out.println("Loading CHR ROM Banks");
+        
+        for (i = 0; i < numCHRBanks; i++) {
+            chr.get(vrom[i], 0, Math.min(0x1000, chr.remaining()));
+            
+            // decode the tiles once for the ppu
+            for(int k = 0; k < 0x100; k++) {
+                PPU.decodeTile(vrom[i], k*16, vromTiles[i]);
+            }
+            
+        }
+    }
+    
+    
+    private static synchronized Banks getSharedBanks(String key) {
+        SoftReference<Banks> ref = sharedBanks.get(key);
+        
+        return (ref == null)?null:ref.get();
+    }
+    
+    
+    private void putSharedBanks(String key) {
+        Banks banks = new Banks();
+        banks.rom = rom;
+        banks.vrom = vrom;
+        banks.vromTiles = vromTiles;
+        
+        synchronized(ROM.class) {
+            sharedBanks.put(key, new SoftReference<Banks>(banks));
+        }
+    }
+    
+    
+    public byte[] getROMBank(int bank) {
         return rom[bank];
     }
     
     
-    public short[] getVROMBank(int bank) {
+    public byte[] getVROMBank(int bank) {
         return vrom[bank];
     }
     
     
-    public short read(int bank, int address) {
+    public byte[] getVROMTiles(int bank) {
+        return vromTiles[bank];
+    }
+    
+    
+    public int read(int bank, int address) {
         try {
-            return rom[bank][address];
+            return rom[bank][address] & 0xFF;
         } catch(ArrayIndexOutOfBoundsException e) {
             System.out.println("ERRROR: Reading ROM bank " + bank + ":" + Integer.toHexString(address));
         }
@@ -239,20 +368,24 @@ public class ROM {
         return -1;
     }
     
-    public void write(int bank, int address, short value) {
-        rom[bank][address] = (short)value;
+    /**
+     * The file name, or the name of the rom in the archive.
+     */
+    public String getName() {
+        return (entryName == null)?romFile.getName():entryName.substring(entryName.lastIndexOf('/') + 1);
     }
     
+    
     public MemoryMapper getMapper() {
         return memoryMapper;
     }
     
     public int getMirroringMode() {
-        return mirrorMode;
+        return fourscreenMode?FOURSCREEN_MIRRORING:mirrorMode;
     }
     
     public String getMapperName() {
-        if(mapperType > mapperNames.length || mapperType < 0)
+        if(mapperType >= mapperNames.length || mapperType < 0)
             return "Unknown Mapper";
         else return mapperNames[mapperType];
     }
@@ -0,0 +1,158 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package beanes;
+
+import java.nio.*;
+
+
+/**
+ * The 16 byte header of an iNES or NES 2.0 file.
+ *
+ * NES 2.0 headers (flags 7 bits 2-3 = 10) add mapper bits 8-11, a submapper,
+ * bigger PRG and CHR sizes (or exponent-multiplier sizes when the size MSB
+ * nibble is F), PRG RAM sizes and the tv system. In old iNES headers bytes
+ * 8-15 should be zero; when 12-15 are not the file was tagged by some old
+ * tool and the upper mapper nibble in flags 7 is garbage too.
+ */
+public class ROMHeader {
+    
+    public static final int SIZE = 16;
+    public static final int MAGIC = 0x4E45531A;     // "NES" 1A
+    
+    public static final int TV_NTSC = 0;
+    public static final int TV_PAL = 1;
+    public static final int TV_DUAL = 2;
+    public static final int TV_DENDY = 3;
+    
+    public boolean nes2;
+    public int mapper;
+    public int submapper;
+    public int prgSize;             // bytes of PRG ROM
+    public int chrSize;             // bytes of CHR ROM, 0 for CHR RAM
+    public int mirroring;           // ROM.HORIZONTAL_MIRRORING or ROM.VERTICAL_MIRRORING
+    public boolean fourScreen;
+    public boolean battery;
+    public boolean trainer;
+    public int prgRAMSize;          // bytes, 0 if unknown (always for iNES)
+    public int tvSystem = TV_NTSC;
+    
+    
+    /**
+     * Parses the header at the start of data, returns null if it is not an
+     * iNES or NES 2.0 header or claims sizes no file can have. The sizes are
+     * what the header says, see fit.
+     */
+    public static ROMHeader parse(ByteBuffer data) {
+        if(data.limit() < SIZE || data.getInt(0) != MAGIC)
+            return null;
+        
+        int[] h = new int[SIZE];
+        for(int i = 0; i < SIZE; i++)
+            h[i] = data.get(i) & 0xFF;
+        
+        ROMHeader header = new ROMHeader();
+        header.nes2 = (h[7] & 0x0C) == 0x08;
+        header.mirroring = ((h[6] & 1) != 0)?ROM.VERTICAL_MIRRORING:ROM.HORIZONTAL_MIRRORING;
+        header.fourScreen = (h[6] & 8) != 0;
+        header.battery = (h[6] & 2) != 0;
+        header.trainer = (h[6] & 4) != 0;
+        
+        if(header.nes2) {
+            header.mapper = (h[6] >> 4) | (h[7] & 0xF0) | ((h[8] & 0x0F) << 8);
+            header.submapper = h[8] >> 4;
+            header.prgSize = romSize(h[4], h[9] & 0x0F, 0x4000);
+            header.chrSize = romSize(h[5], h[9] >> 4, 0x2000);
+            header.prgRAMSize = ramSize(h[10] & 0x0F) + ramSize(h[10] >> 4);
+            header.tvSystem = h[12] & 3;
+            
+            if(header.prgSize < 0 || header.chrSize < 0)
+                return null;
+        } else {
+            boolean tagged = h[12] != 0 || h[13] != 0 || h[14] != 0 || h[15] != 0;
+            
+            header.mapper = (h[6] >> 4) | (tagged?0:(h[7] & 0xF0));
+            header.prgSize = h[4]*0x4000;
+            header.chrSize = h[5]*0x2000;
+            header.tvSystem = ((h[9] & 1) != 0)?TV_PAL:TV_NTSC;
+        }
+        
+        return header;
+    }
+    
+    
+    /**
+     * NES 2.0 ROM size from the LSB byte and MSB nibble in units of unit bytes,
+     * or as 2^E*(M*2+1) with LSB = EEEEEEMM when the MSB nibble is F.
+     * -1 if that does not fit in an int.
+     */
+    private static int romSize(int lsb, int msb, int unit) {
+        if(msb == 0x0F) {
+            // sizes of 2^31 and up do not fit an int, 2^63 would overflow the long
+            if((lsb >> 2) > 30) return -1;
+            
+            long size = (1L << (lsb >> 2))*((lsb & 3)*2 + 1);
+            return (size <= 0 || size > Integer.MAX_VALUE)?-1:(int)size;
+        }
+        
+        return ((msb << 8) | lsb)*unit;
+    }
+    
+    
+    private static int ramSize(int shift) {
+        return (shift == 0)?0:(64 << shift);
+    }
+    
+    
+    /**
+     * Cuts the PRG and CHR sizes down to what a file of the given length
+     * holds. Returns false if it does not hold any PRG ROM after the header
+     * and trainer.
+     */
+    public boolean fit(long length) {
+        long available = length - getPRGOffset();
+        
+        if(available <= 0 || prgSize == 0)
+            return false;
+        
+        prgSize = (int)Math.min(prgSize, available);
+        chrSize = (int)Math.min(chrSize, available - prgSize);
+        
+        return true;
+    }
+    
+    
+    /**
+     * Offset of the PRG ROM in the file.
+     */
+    public int getPRGOffset() {
+        return SIZE + (trainer?512:0);
+    }
+    
+    
+    public String getTVSystemName() {
+        switch(tvSystem) {
+            case TV_PAL: return "PAL";
+            case TV_DUAL: return "NTSC/PAL";
+            case TV_DENDY: return "Dendy";
+            default: return "NTSC";
+        }
+    }
+}
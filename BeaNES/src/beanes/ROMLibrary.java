@@ -0,0 +1,480 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package beanes;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+
+/**
+ * An index of the roms in a directory tree, plain .nes files as well as .nes
+ * files in zip archives. Each rom is listed with its header and the CRC32 of
+ * its PRG, its CHR and both together.
+ *
+ * The index is kept in a text file so only files that are new or changed
+ * (by length or modification time) are read again on the next scan, the
+ * others are only looked at with File.lastModified. New files are hashed on
+ * a pool of threads, one archive or file per task.
+ *
+ * A database of known-good headers ("crc mapper mirroring [name]", crc over
+ * PRG and CHR, mirroring H, V, 4 or - to keep the header's) overrides the
+ * mapper and mirroring of roms with bad headers when they are loaded.
+ *
+ * usage: ROMLibrary romdir index [database]
+ */
+public class ROMLibrary {
+    
+    public static class Entry {
+        public File file;           // the .nes file or the zip archive it is in
+        public String entryName;    // name in the archive, null for plain files
+        public long length;         // of file when it was hashed
+        public long lastModified;
+        public ROMHeader header;    // null if it is not an iNES file
+        public byte[] headerData;
+        public long prgCRC;
+        public long chrCRC;
+        public long crc;            // PRG and CHR together
+        
+        
+        public String getName() {
+            String name = (entryName == null)?file.getName():entryName;
+            
+            return name.substring(name.lastIndexOf('/') + 1);
+        }
+        
+        
+        public ROM createROM(BeaNES nes) {
+            return new ROM(nes, file, entryName);
+        }
+    }
+    
+    
+    public static class HeaderOverride {
+        public int mapper;
+        public int mirroring;       // ROM.HORIZONTAL_MIRRORING, VERTICAL or FOURSCREEN, -1 to keep
+        public String name;
+    }
+    
+    
+    // file path -> roms in the file (one unless it is an archive)
+    private TreeMap<String, List<Entry>> entries = new TreeMap<String, List<Entry>>();
+    private HashMap<Long, HeaderOverride> overrides = new HashMap<Long, HeaderOverride>();
+    private int threads;
+    
+    
+    public ROMLibrary(int threads) {
+        this.threads = threads;
+    }
+    
+    
+    public ROMLibrary() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    
+    /**
+     * Brings the index up to date with the roms under dir. Entries of files
+     * under dir that are gone are dropped, new and changed files are hashed.
+     * Returns the number of files that were read.
+     */
+    public int scan(File dir) throws InterruptedException, ExecutionException {
+        ArrayList<File> files = new ArrayList<File>();
+        findFiles(dir, files);
+        
+        // forget what was under dir and no longer is
+        String prefix = dir.getAbsolutePath() + File.separator;
+        HashSet<String> found = new HashSet<String>();
+        for(File file : files)
+            found.add(file.getAbsolutePath());
+        
+        synchronized(this) {
+            Iterator<String> i = entries.keySet().iterator();
+            while(i.hasNext()) {
+                String path = i.next();
+                if(path.startsWith(prefix) && !found.contains(path))
+                    i.remove();
+            }
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<List<Entry>>> futures = new ArrayList<Future<List<Entry>>>();
+        
+        try {
+            for(final File file : files) {
+                if(isCurrent(file)) continue;
+                
+                futures.add(executor.submit(new Callable<List<Entry>>() {
+                    public List<Entry> call() throws IOException {
+                        return hashFile(file);
+                    }
+                }));
+            }
+            
+            for(Future<List<Entry>> future : futures) {
+                try {
+                    List<Entry> list = future.get();
+                    
+                    synchronized(this) {
+                        entries.put(list.get(0).file.getAbsolutePath(), list);
+                    }
+                } catch(ExecutionException e) {
+                    // unreadable file, it is tried again next time
+                    System.out.println(e.getCause().getMessage());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        return futures.size();
+    }
+    
+    
+    private static void findFiles(File dir, List<File> files) {
+        File[] list = dir.listFiles();
+        if(list == null) return;
+        
+        for(File file : list) {
+            String name = file.getName().toLowerCase();
+            
+            if(file.isDirectory())
+                findFiles(file, files);
+            else if(name.endsWith(".nes") || name.endsWith(".zip"))
+                files.add(file);
+        }
+    }
+    
+    
+    private synchronized boolean isCurrent(File file) {
+        List<Entry> list = entries.get(file.getAbsolutePath());
+        
+        return list != null && list.get(0).length == file.length() && list.get(0).lastModified == file.lastModified();
+    }
+    
+    
+    /**
+     * Reads and hashes a .nes file or the .nes files in a zip archive. The
+     * list has at least one entry, archives without roms get one with a null
+     * entry name and header so they are not opened again while unchanged.
+     */
+    private static List<Entry> hashFile(File file) throws IOException {
+        ArrayList<Entry> list = new ArrayList<Entry>();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        
+        if(file.getName().toLowerCase().endsWith(".zip")) {
+            ZipFile zip = new ZipFile(file);
+            
+            try {
+                Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+                
+                while(zipEntries.hasMoreElements()) {
+                    ZipEntry zipEntry = zipEntries.nextElement();
+                    
+                    if(!zipEntry.isDirectory() && zipEntry.getName().toLowerCase().endsWith(".nes"))
+                        list.add(hash(file, zipEntry.getName(), readEntry(zip, zipEntry)));
+                }
+            } finally {
+                zip.close();
+            }
+            
+            if(list.isEmpty())
+                list.add(hash(file, null, ByteBuffer.allocate(0)));
+        } else {
+            list.add(hash(file, null, ROM.map(file)));
+        }
+        
+        for(Entry entry : list) {
+            entry.length = length;
+            entry.lastModified = lastModified;
+        }
+        
+        return list;
+    }
+    
+    
+    /**
+     * Reads a whole entry of an archive.
+     */
+    public static ByteBuffer readEntry(ZipFile zip, ZipEntry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((entry.getSize() > 0)?(int)entry.getSize():0x10000);
+        InputStream in = zip.getInputStream(entry);
+        byte[] buffer = new byte[0x10000];
+        int read;
+        
+        try {
+            while((read = in.read(buffer)) > 0)
+                out.write(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+        
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+    
+    
+    private static Entry hash(File file, String entryName, ByteBuffer data) {
+        Entry entry = new Entry();
+        entry.file = file;
+        entry.entryName = entryName;
+        entry.header = ROMHeader.parse(data);
+        if(entry.header != null && !entry.header.fit(data.limit()))
+            entry.header = null;
+        
+        if(entry.header != null) {
+            entry.headerData = new byte[ROMHeader.SIZE];
+            data.duplicate().get(entry.headerData);
+            
+            ByteBuffer prg = ROM.slice(data, entry.header.getPRGOffset(), entry.header.prgSize);
+            ByteBuffer chr = ROM.slice(data, entry.header.getPRGOffset() + entry.header.prgSize, entry.header.chrSize);
+            CRC32 prgCRC = new CRC32();
+            CRC32 chrCRC = new CRC32();
+            CRC32 crc = new CRC32();
+            
+            update(prg, prgCRC, crc);
+            update(chr, chrCRC, crc);
+            entry.prgCRC = prgCRC.getValue();
+            entry.chrCRC = chrCRC.getValue();
+            entry.crc = crc.getValue();
+        }
+        
+        return entry;
+    }
+    
+    
+    /**
+     * CRC32 over PRG and CHR, the key of the database.
+     */
+    public static long crc(ByteBuffer prg, ByteBuffer chr) {
+        CRC32 crc = new CRC32();
+        
+        update(prg, crc, null);
+        update(chr, crc, null);
+        
+        return crc.getValue();
+    }
+    
+    
+    private static void update(ByteBuffer data, CRC32 crc1, CRC32 crc2) {
+        ByteBuffer in = data.duplicate();
+        byte[] buffer = new byte[0x4000];
+        
+        while(in.hasRemaining()) {
+            int length = Math.min(buffer.length, in.remaining());
+            
+            in.get(buffer, 0, length);
+            crc1.update(buffer, 0, length);
+            if(crc2 != null) crc2.update(buffer, 0, length);
+        }
+    }
+    
+    
+    /**
+     * All roms in the index sorted by file, archives without roms and files
+     * that are not iNES files are left out.
+     */
+    public synchronized List<Entry> getEntries() {
+        ArrayList<Entry> list = new ArrayList<Entry>();
+        
+        for(List<Entry> fileEntries : entries.values()) {
+            for(Entry entry : fileEntries)
+                if(entry.header != null) list.add(entry);
+        }
+        
+        return list;
+    }
+    
+    
+    /**
+     * The entry of a rom if the index has it and the file did not change since.
+     */
+    public synchronized Entry find(File file, String entryName) {
+        List<Entry> list = entries.get(file.getAbsolutePath());
+        
+        if(list == null || !isCurrent(file))
+            return null;
+        
+        for(Entry entry : list) {
+            if((entryName == null)?entry.entryName == null:entryName.equals(entry.entryName))
+                return entry;
+        }
+        
+        return null;
+    }
+    
+    
+    /**
+     * Index lines are "path entry length lastModified header prgCRC chrCRC crc"
+     * separated by tabs, entry and header are - when there is none.
+     */
+    public synchronized void readIndex(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        String line;
+        
+        try {
+            while((line = in.readLine()) != null) {
+                if(line.length() == 0 || line.startsWith("#")) continue;
+                
+                String[] fields = line.split("\t");
+                if(fields.length != 8)
+                    throw new IOException(file.getName() + ": bad line '" + line + "'");
+                
+                try {
+                    Entry entry = new Entry();
+                    entry.file = new File(fields[0]);
+                    entry.entryName = fields[1].equals("-")?null:fields[1];
+                    entry.length = Long.parseLong(fields[2]);
+                    entry.lastModified = Long.parseLong(fields[3]);
+                    
+                    if(!fields[4].equals("-")) {
+                        entry.headerData = new byte[ROMHeader.SIZE];
+                        for(int i = 0; i < ROMHeader.SIZE; i++)
+                            entry.headerData[i] = (byte)Integer.parseInt(fields[4].substring(i*2, i*2 + 2), 16);
+                        entry.header = ROMHeader.parse(ByteBuffer.wrap(entry.headerData));
+                        
+                        // sizes as read when hashed (the length of a zip entry is not kept)
+                        if(entry.header != null && entry.entryName == null)
+                            entry.header.fit(entry.length);
+                    }
+                    
+                    entry.prgCRC = Long.parseLong(fields[5], 16);
+                    entry.chrCRC = Long.parseLong(fields[6], 16);
+                    entry.crc = Long.parseLong(fields[7], 16);
+                    
+                    List<Entry> list = entries.get(fields[0]);
+                    if(list == null) {
+                        list = new ArrayList<Entry>();
+                        entries.put(fields[0], list);
+                    }
+                    list.add(entry);
+                } catch(RuntimeException e) {
+                    throw new IOException(file.getName() + ": bad line '" + line + "'");
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    
+    public synchronized void writeIndex(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        
+        out.println("# " + BeaNES.PROGRAM_STRING + " rom index: path entry length lastModified header prgCRC chrCRC crc");
+        for(List<Entry> list : entries.values()) {
+            for(Entry entry : list) {
+                StringBuilder header = new StringBuilder();
+                
+                if(entry.headerData == null)
+                    header.append("-");
+                else
+                    for(byte b : entry.headerData)
+                        header.append(String.format("%02x", b & 0xFF));
+                
+                out.println(entry.file.getAbsolutePath() + "\t" + ((entry.entryName == null)?"-":entry.entryName)
+                        + "\t" + entry.length + "\t" + entry.lastModified + "\t" + header
+                        + "\t" + Long.toHexString(entry.prgCRC) + "\t" + Long.toHexString(entry.chrCRC)
+                        + "\t" + Long.toHexString(entry.crc));
+            }
+        }
+        
+        out.close();
+        if(out.checkError())
+            throw new IOException("could not write " + file);
+    }
+    
+    
+    public synchronized void readDatabase(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        String line;
+        
+        try {
+            while((line = in.readLine()) != null) {
+                line = line.trim();
+                if(line.length() == 0 || line.startsWith("#")) continue;
+                
+                String[] fields = line.split("\\s+", 4);
+                if(fields.length < 3 || "HV4-".indexOf(fields[2]) < 0 || fields[2].length() != 1)
+                    throw new IOException(file.getName() + ": bad line '" + line + "'");
+                
+                try {
+                    HeaderOverride override = new HeaderOverride();
+                    override.mapper = Integer.parseInt(fields[1]);
+                    override.mirroring = "HV4-".indexOf(fields[2]);
+                    if(override.mirroring == 3) override.mirroring = -1;
+                    override.name = (fields.length > 3)?fields[3]:null;
+                    
+                    overrides.put(Long.parseLong(fields[0], 16), override);
+                } catch(NumberFormatException e) {
+                    throw new IOException(file.getName() + ": bad line '" + line + "'");
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    
+    public synchronized boolean hasOverrides() {
+        return !overrides.isEmpty();
+    }
+    
+    
+    public synchronized HeaderOverride getOverride(long crc) {
+        return overrides.get(crc);
+    }
+    
+    
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2) {
+            System.out.println("usage: ROMLibrary romdir index [database]");
+            System.exit(1);
+        }
+        
+        File dir = new File(args[0]);
+        File indexFile = new File(args[1]);
+        ROMLibrary library = new ROMLibrary();
+        
+        if(indexFile.exists())
+            library.readIndex(indexFile);
+        if(args.length > 2)
+            library.readDatabase(new File(args[2]));
+        
+        long start = System.nanoTime();
+        int read = library.scan(dir);
+        long time = System.nanoTime() - start;
+        
+        library.writeIndex(indexFile);
+        
+        for(Entry entry : library.getEntries()) {
+            HeaderOverride override = library.getOverride(entry.crc);
+            
+            System.out.println(String.format("%-40s mapper %3d  PRG %4dK  CHR %4dK  %08x%s", entry.getName(),
+                    entry.header.mapper, entry.header.prgSize/1024, entry.header.chrSize/1024, entry.crc,
+                    (override == null)?"":"  (database: mapper " + override.mapper + ")"));
+        }
+        
+        System.out.println(library.getEntries().size() + " roms, " + read + " files read in " + (time/1000000) + " ms");
+    }
+}
@@ -0,0 +1,337 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package beanes;
+
+import java.io.*;
+import java.nio.*;
+
+
+/**
+ * Keeps a save state of every frame so the game can be stepped backwards.
+ *
+ * Every keyframeInterval frames the full state is kept, the frames in between
+ * only keep the state XORed with the last keyframe. Both are run length
+ * encoded (mostly runs of zeroes for the deltas) into one ring buffer of a
+ * fixed size, the oldest frames are dropped when it is full. Going back N
+ * frames decodes at most one keyframe and one delta.
+ *
+ * Encoding: a tag byte n < 0x80 stands for n+1 zero bytes, n >= 0x80 is
+ * followed by (n&0x7F)+1 literal bytes.
+ */
+public class Rewind {
+    
+    private SaveState state = new SaveState();
+    
+    private byte[] ring;
+    private int ringStart;              // offset of the oldest frame
+    private int ringUsed;
+    
+    // per frame (oldest first starting at first): offset in the ring, encoded and raw length
+    private int[] frameOffsets;
+    private int[] frameLengths;
+    private int[] frameSizes;
+    private boolean[] keyframes;
+    private int first;
+    private int count;
+    
+    private int keyframeInterval;
+    private int sinceKeyframe;
+    private byte[] keyframe = new byte[SaveState.MAX_SIZE];
+    private int keyframeSize;
+    
+    private byte[] scratch = new byte[SaveState.MAX_SIZE*2];
+    private byte[] delta = new byte[SaveState.MAX_SIZE];
+    
+    private long rawBytes;
+    private long encodedBytes;
+    
+    
+    /**
+     * memoryCap is the size of the ring buffer in bytes, at most maxFrames frames are kept.
+     */
+    public Rewind(int memoryCap, int maxFrames, int keyframeInterval) {
+        ring = new byte[memoryCap];
+        frameOffsets = new int[maxFrames];
+        frameLengths = new int[maxFrames];
+        frameSizes = new int[maxFrames];
+        keyframes = new boolean[maxFrames];
+        this.keyframeInterval = keyframeInterval;
+        
+        clear();
+    }
+    
+    
+    public void clear() {
+        ringStart = 0;
+        ringUsed = 0;
+        first = 0;
+        count = 0;
+        sinceKeyframe = keyframeInterval;
+        rawBytes = 0;
+        encodedBytes = 0;
+    }
+    
+    
+    /**
+     * Stores the current state, to be called between frames.
+     */
+    public void record(BeaNES nes) {
+        state.save(nes);
+        
+        ByteBuffer buffer = state.getBuffer();
+        byte[] data = buffer.array();
+        int size = buffer.limit();
+        boolean key = sinceKeyframe >= keyframeInterval;
+        int length = encode(data, size, key);
+        
+        // too big for the ring buffer
+        if(length > ring.length) {
+            sinceKeyframe = keyframeInterval;
+            return;
+        }
+        
+        makeRoom(length);
+        
+        // the keyframe had to go, so this frame becomes one
+        if(!key && count == 0) {
+            key = true;
+            length = encode(data, size, key);
+            
+            if(length > ring.length) {
+                sinceKeyframe = keyframeInterval;
+                return;
+            }
+        }
+        sinceKeyframe++;
+        
+        int offset = (ringStart + ringUsed) % ring.length;
+        copyIn(scratch, offset, length);
+        ringUsed += length;
+        
+        int index = (first + count) % frameOffsets.length;
+        frameOffsets[index] = offset;
+        frameLengths[index] = length;
+        frameSizes[index] = size;
+        keyframes[index] = key;
+        count++;
+        
+        rawBytes += size;
+        encodedBytes += length;
+    }
+    
+    
+    /**
+     * Goes back the given number of frames (0 is the last recorded frame) and
+     * forgets the frames after it. Returns the number of frames actually gone back.
+     */
+    public int rewind(BeaNES nes, int frames) throws IOException {
+        if(count == 0) return 0;
+        if(frames > count - 1) frames = count - 1;
+        
+        int target = count - 1 - frames;
+        
+        // find the keyframe the target frame depends on
+        int key = target;
+        while(!keyframes[(first + key) % frameOffsets.length]) key--;
+        
+        int keyIndex = (first + key) % frameOffsets.length;
+        int index = (first + target) % frameOffsets.length;
+        
+        copyOut(frameOffsets[keyIndex], frameLengths[keyIndex], scratch);
+        decode(scratch, frameLengths[keyIndex], keyframe);
+        keyframeSize = frameSizes[keyIndex];
+        
+        ByteBuffer buffer = state.getBuffer();
+        buffer.clear();
+        
+        if(index == keyIndex) {
+            buffer.put(keyframe, 0, keyframeSize);
+        } else {
+            copyOut(frameOffsets[index], frameLengths[index], scratch);
+            decode(scratch, frameLengths[index], delta);
+            xor(delta, frameSizes[index], keyframe, keyframeSize, buffer.array());
+            buffer.position(frameSizes[index]);
+        }
+        buffer.flip();
+        
+        state.load(nes);
+        
+        // drop everything after the target
+        while(count - 1 > target) {
+            int last = (first + count - 1) % frameOffsets.length;
+            ringUsed -= frameLengths[last];
+            rawBytes -= frameSizes[last];
+            encodedBytes -= frameLengths[last];
+            count--;
+        }
+        sinceKeyframe = target - key + 1;
+        
+        return frames;
+    }
+    
+    
+    /**
+     * Encodes the state into scratch, as a keyframe or against the last one.
+     */
+    private int encode(byte[] data, int size, boolean key) {
+        if(key) {
+            System.arraycopy(data, 0, keyframe, 0, size);
+            keyframeSize = size;
+            sinceKeyframe = 0;
+            return encode(data, size, scratch);
+        }
+        
+        xor(data, size, keyframe, keyframeSize, delta);
+        return encode(delta, size, scratch);
+    }
+    
+    
+    private void makeRoom(int length) {
+        while(count > 0 && (count == frameOffsets.length || ring.length - ringUsed < length))
+            dropOldest();
+        
+        // frames without their keyframe are useless
+        while(count > 0 && !keyframes[first])
+            dropOldest();
+    }
+    
+    
+    private void dropOldest() {
+        ringStart = (ringStart + frameLengths[first]) % ring.length;
+        ringUsed -= frameLengths[first];
+        rawBytes -= frameSizes[first];
+        encodedBytes -= frameLengths[first];
+        first = (first + 1) % frameOffsets.length;
+        count--;
+    }
+    
+    
+    private void copyIn(byte[] data, int offset, int length) {
+        int part = Math.min(length, ring.length - offset);
+        System.arraycopy(data, 0, ring, offset, part);
+        System.arraycopy(data, part, ring, 0, length - part);
+    }
+    
+    
+    private void copyOut(int offset, int length, byte[] data) {
+        int part = Math.min(length, ring.length - offset);
+        System.arraycopy(ring, offset, data, 0, part);
+        System.arraycopy(ring, 0, data, part, length - part);
+    }
+    
+    
+    /**
+     * dest = data ^ key, bytes past the end of key are copied as they are.
+     */
+    private static void xor(byte[] data, int size, byte[] key, int keySize, byte[] dest) {
+        int common = Math.min(size, keySize);
+        
+        for(int i = 0; i < common; i++)
+            dest[i] = (byte)(data[i] ^ key[i]);
+        
+        if(size > common)
+            System.arraycopy(data, common, dest, common, size - common);
+    }
+    
+    
+    /**
+     * Run length encodes size bytes of data into out and returns the encoded length.
+     */
+    public static int encode(byte[] data, int size, byte[] out) {
+        int i = 0;
+        int o = 0;
+        
+        while(i < size) {
+            int run = 0;
+            
+            // zeroes
+            while(i + run < size && data[i + run] == 0 && run < 0x80) run++;
+            if(run > 0) {
+                out[o++] = (byte)(run - 1);
+                i += run;
+                continue;
+            }
+            
+            // literals up to the next pair of zeroes
+            while(i + run < size && run < 0x80 &&
+                    !(data[i + run] == 0 && (i + run + 1 >= size || data[i + run + 1] == 0))) run++;
+            
+            out[o++] = (byte)(0x80 | (run - 1));
+            System.arraycopy(data, i, out, o, run);
+            o += run;
+            i += run;
+        }
+        
+        return o;
+    }
+    
+    
+    /**
+     * Decodes length bytes of encoded data into out and returns the decoded length.
+     */
+    public static int decode(byte[] data, int length, byte[] out) {
+        int i = 0;
+        int o = 0;
+        
+        while(i < length) {
+            int tag = data[i++] & 0xFF;
+            int run = (tag & 0x7F) + 1;
+            
+            if(tag < 0x80) {
+                for(int j = 0; j < run; j++) out[o++] = 0;
+            } else {
+                System.arraycopy(data, i, out, o, run);
+                i += run;
+                o += run;
+            }
+        }
+        
+        return o;
+    }
+    
+    
+    /**
+     * Number of frames that can be gone back to.
+     */
+    public int getFrameCount() {
+        return count;
+    }
+    
+    
+    /**
+     * Bytes of the ring buffer in use.
+     */
+    public int getMemoryUsed() {
+        return ringUsed;
+    }
+    
+    
+    public int getMemoryCap() {
+        return ring.length;
+    }
+    
+    
+    /**
+     * Size of the stored states divided by what they take up in the ring buffer.
+     */
+    public double getCompressionRatio() {
+        return (encodedBytes == 0)?0:(double)rawBytes/encodedBytes;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package beanes;
+
+import java.io.*;
+import java.nio.*;
+
+
+/**
+ * Snapshot of the whole machine in a ByteBuffer that is allocated once and
+ * reused for every save, so states can be taken every frame.
+ *
+ * Format (big endian):
+ *   int     MAGIC ("BNST")
+ *   int     VERSION
+ *   ...     cpu, ppu, mapper and scheduler state, written by their saveState methods
+ *
+ * States are best taken between frames (after Clock.runFrame); anything the ppu
+ * already drew of the current frame is not part of the state.
+ */
+public class SaveState {
+    
+    public static final int MAGIC = 0x424E5354;
+    public static final int VERSION = 2;
+    
+    // enough for everything including CHR RAM
+    public static final int MAX_SIZE = 0x8000;
+    
+    private ByteBuffer buffer;
+    
+    
+    public SaveState() {
+        buffer = ByteBuffer.allocate(MAX_SIZE);
+        buffer.limit(0);
+    }
+    
+    
+    public void save(BeaNES nes) {
+        CPU cpu = nes.getCPU();
+        
+        // everything the ppu still owes is drawn with the current state
+        nes.getPPU().catchUp(cpu.getNumCyclesRan());
+        
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        
+        cpu.saveState(buffer);
+        nes.getPPU().saveState(buffer);
+        nes.getMapper().saveState(buffer);
+        nes.getScheduler().saveState(buffer);
+        
+        buffer.flip();
+    }
+    
+    
+    /**
+     * Restores the state into nes, which has to be running the same rom.
+     */
+    public void load(BeaNES nes) throws IOException {
+        buffer.rewind();
+        
+        if(buffer.remaining() < 8 || buffer.getInt() != MAGIC)
+            throw new IOException("not a save state");
+        
+        int version = buffer.getInt();
+        if(version != VERSION)
+            throw new IOException("unsupported save state version " + version);
+        
+        try {
+            nes.getCPU().loadState(buffer);
+            nes.getPPU().loadState(buffer);
+            nes.getMapper().loadState(buffer);
+            nes.getScheduler().loadState(buffer);
+        } catch(BufferUnderflowException e) {
+            throw new IOException("save state is truncated");
+        }
+    }
+    
+    
+    /**
+     * The state between position 0 and the limit.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+    
+    
+    public int getSize() {
+        return buffer.limit();
+    }
+    
+    
+    public void write(OutputStream out) throws IOException {
+        out.write(buffer.array(), 0, buffer.limit());
+    }
+    
+    
+    public void read(InputStream in) throws IOException {
+        int length = 0;
+        int read;
+        
+        buffer.clear();
+        while((read = in.read(buffer.array(), length, MAX_SIZE - length)) > 0)
+            length += read;
+        
+        buffer.limit(length);
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package beanes;
+
+
+/**
+ * Lets a mapper follow the ppu's progress through the frame, for boards with
+ * scanline counters. Register with PPU.setScanlineListener; the ppu only
+ * schedules the events a listener asked for, so mappers without a counter
+ * never pay for them.
+ */
+public interface ScanlineListener {
+    
+    public static final int SCANLINE = 1;
+    public static final int A12_RISE = 2;
+    
+    /**
+     * Called at the end of the visible part (dot 256) of every scanline that
+     * fetches patterns (0-239 and the pre-render line 261) while rendering is on.
+     */
+    public abstract void scanline(int line, long time);
+    
+    /**
+     * Called when PPU address line A12 goes high after having been low for a
+     * while: once per fetching scanline if background and sprites use
+     * different pattern tables, or when the cpu moves the vram address up
+     * over 0x1000 outside rendering.
+     */
+    public abstract void a12Rise(long time);
+}
@@ -0,0 +1,175 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package beanes;
+
+import java.util.*;
+import java.nio.*;
+
+/*
+ * Master scheduler
+ *
+ * All times are in cpu cycles since the last hard reset. The cpu runs
+ * uninterrupted until the earliest pending event is due, then the events
+ * that are due get handled and the cpu continues.
+ *
+ * There is at most one pending event of each type, scheduling a type
+ * again moves it.
+ */
+public class Scheduler {
+    
+    public static final long NEVER = Long.MAX_VALUE;
+    
+    public static final int EVENT_SCANLINE = 0;
+    public static final int EVENT_VBLANK = 1;
+    public static final int EVENT_SPRITE0 = 2;
+    public static final int EVENT_MAPPER_IRQ = 3;
+    public static final int NUM_EVENTS = 4;
+    
+    private PriorityQueue<Event> queue = new PriorityQueue<Event>();
+    private Event[] events = new Event[NUM_EVENTS];
+    private long nextEventTime = NEVER;
+    
+    
+    public Scheduler() {
+        for(int i = 0; i < events.length; i++)
+            events[i] = new Event(i);
+    }
+    
+    
+    /**
+     * Drops all pending events (handlers stay registered).
+     */
+    public void reset() {
+        queue.clear();
+        
+        for(int i = 0; i < events.length; i++)
+            events[i].queued = false;
+        
+        nextEventTime = NEVER;
+    }
+    
+    
+    public void setHandler(int type, EventHandler handler) {
+        events[type].handler = handler;
+    }
+    
+    
+    /**
+     * Schedules (or moves) the event of the given type to a cpu cycle.
+     */
+    public void schedule(int type, long time) {
+        Event event = events[type];
+        
+        if(event.queued)
+            queue.remove(event);
+        
+        event.time = time;
+        event.queued = true;
+        queue.add(event);
+        
+        nextEventTime = queue.peek().time;
+    }
+    
+    
+    public void cancel(int type) {
+        Event event = events[type];
+        
+        if(!event.queued)
+            return;
+        
+        queue.remove(event);
+        event.queued = false;
+        
+        nextEventTime = queue.isEmpty()?NEVER:queue.peek().time;
+    }
+    
+    
+    public boolean isScheduled(int type) {
+        return events[type].queued;
+    }
+    
+    
+    public long getEventTime(int type) {
+        return events[type].queued?events[type].time:NEVER;
+    }
+    
+    
+    /**
+     * Time of the earliest pending event, the cpu may run up to this cycle.
+     */
+    public long getNextEventTime() {
+        return nextEventTime;
+    }
+    
+    
+    /**
+     * Handles all events that are due at the given cpu cycle, earliest first.
+     */
+    public void runEvents(long time) {
+        while(nextEventTime <= time) {
+            Event event = queue.poll();
+            event.queued = false;
+            nextEventTime = queue.isEmpty()?NEVER:queue.peek().time;
+            
+            if(event.handler != null)
+                event.handler.handleEvent(event.type, event.time);
+        }
+    }
+    
+    
+    /**
+     * Writes the time of each pending event (NEVER if there is none).
+     */
+    public void saveState(ByteBuffer out) {
+        for(int i = 0; i < events.length; i++)
+            out.putLong(getEventTime(i));
+    }
+    
+    
+    public void loadState(ByteBuffer in) {
+        for(int i = 0; i < events.length; i++) {
+            long time = in.getLong();
+            
+            if(time == NEVER)
+                cancel(i);
+            else
+                schedule(i, time);
+        }
+    }
+    
+    
+    private static class Event implements Comparable<Event> {
+        int type;
+        long time;
+        boolean queued;
+        EventHandler handler;
+        
+        Event(int type) {
+            this.type = type;
+        }
+        
+        public int compareTo(Event e) {
+            if(time != e.time)
+                return (time < e.time)?-1:1;
+            
+            return type - e.type;
+        }
+    }
+}
@@ -24,7 +24,7 @@ import java.awt.*;
 import java.awt.image.*;
 
 
-public class VideoOutput extends JComponent {
+public class VideoOutput extends JComponent implements FrameSink {
     
     BeaNES nes;
     
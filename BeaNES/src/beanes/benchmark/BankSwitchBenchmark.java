@@ -0,0 +1,197 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package beanes.benchmark;
+
+import beanes.*;
+import java.io.*;
+
+/**
+ * Measures the cost of a bank select write.
+ *
+ * A small UNROM (mapper 2) and CNROM (mapper 3) image is generated whose program
+ * does nothing but select banks 0-7 in a loop (LDA #n / STA $8000). The time per
+ * write through the mapper is compared with the System.arraycopy the mappers used
+ * to do on every write (16K of PRG for UNROM, two 4K CHR banks for CNROM).
+ */
+public class BankSwitchBenchmark {
+    
+    private static final int SWITCHES_PER_LOOP = 8;
+    private static final int INSTRUCTIONS_PER_LOOP = SWITCHES_PER_LOOP*2 + 1;
+    
+    private BeaNES nes;
+    
+    public BankSwitchBenchmark(BeaNES nes) {
+        this.nes = nes;
+    }
+    
+    
+    /**
+     * Builds the iNES image. The bank select loop lives at 0xC000 of the last
+     * 16K PRG bank, which is fixed (UNROM) or always mapped (CNROM).
+     */
+    public static byte[] createROM(int mapper, int prgBanks, int chrBanks) {
+        byte[] data = new byte[16 + prgBanks*0x4000 + chrBanks*0x2000];
+        
+        data[0] = 0x4E;
+        data[1] = 0x45;
+        data[2] = 0x53;
+        data[3] = 0x1A;
+        data[4] = (byte)prgBanks;
+        data[5] = (byte)chrBanks;
+        data[6] = (byte)((mapper&0xF) << 4);
+        data[7] = (byte)(mapper&0xF0);
+        
+        // fill banks with something other than zeroes
+        for(int i = 16; i < data.length; i++)
+            data[i] = (byte)(i*7);
+        
+        int code = 16 + (prgBanks-1)*0x4000;
+        int pc = code;
+        
+        for(int bank = 0; bank < SWITCHES_PER_LOOP; bank++) {
+            data[pc++] = (byte)0xA9;            // LDA #bank
+            data[pc++] = (byte)bank;
+            data[pc++] = (byte)0x8D;            // STA $8000
+            data[pc++] = (byte)0x00;
+            data[pc++] = (byte)0x80;
+        }
+        
+        data[pc++] = (byte)0x4C;                // JMP $C000
+        data[pc++] = (byte)0x00;
+        data[pc++] = (byte)0xC0;
+        
+        // reset vector
+        data[code + 0x3FFC] = (byte)0x00;
+        data[code + 0x3FFD] = (byte)0xC0;
+        
+        return data;
+    }
+    
+    
+    /**
+     * Builds an NROM image with one 16K PRG bank holding the program at 0xC000
+     * (the reset vector) and one CHR bank.
+     */
+    public static byte[] createROM(int[] program, int nmi) {
+        byte[] data = createROM(0, 1, 1);
+        
+        for(int i = 0; i < program.length; i++)
+            data[16 + i] = (byte)program[i];
+        
+        data[16 + 0x3FFA] = (byte)nmi;
+        data[16 + 0x3FFB] = (byte)(nmi >> 8);
+        
+        return data;
+    }
+    
+    
+    /**
+     * A powered up nes without video or audio running the given image.
+     */
+    public static BeaNES createNES(byte[] data) throws IOException {
+        BeaNES nes = new BeaNES(null, null);
+        nes.loadROM(new ROM(nes, writeROM(data, "bench")));
+        nes.powerUp();
+        return nes;
+    }
+    
+    
+    /**
+     * Runs the bank select loop and returns nanoseconds per bank select write.
+     */
+    public double runWindows(File romFile, int switches) {
+        nes.loadROM(new ROM(nes, romFile));
+        
+        CPU cpu = nes.getCPU();
+        cpu.hardReset();
+        
+        int instructions = (switches / SWITCHES_PER_LOOP) * INSTRUCTIONS_PER_LOOP;
+        
+        long start = System.nanoTime();
+        for(int i = 0; i < instructions; i++)
+            cpu.processNextInstruction();
+        long time = System.nanoTime() - start;
+        
+        return (double)time / switches;
+    }
+    
+    
+    /**
+     * Runs the copies the mappers used to do for the same number of writes and
+     * returns nanoseconds per bank select write.
+     */
+    public double runCopies(int switches, int copies, int size) {
+        short[] source = new short[size];
+        short[] dest = new short[0x10000];
+        
+        long start = System.nanoTime();
+        for(int i = 0; i < switches; i++)
+            for(int j = 0; j < copies; j++)
+                System.arraycopy(source, 0, dest, (i&1)*size + j*size, size);
+        long time = System.nanoTime() - start;
+        
+        return (double)time / switches;
+    }
+    
+    
+    static File writeROM(byte[] data, String name) throws IOException {
+        File file = File.createTempFile(name, ".nes");
+        file.deleteOnExit();
+        
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        
+        return file;
+    }
+    
+    
+    public static void main(String[] args) throws IOException {
+        int switches = (args.length > 0)?Integer.parseInt(args[0]):1000000;
+        
+        BankSwitchBenchmark benchmark = new BankSwitchBenchmark(new BeaNES(null, null));
+        
+        File unrom = writeROM(createROM(2, 8, 0), "unrom");
+        File cnrom = writeROM(createROM(3, 2, 4), "cnrom");
+        
+        // first pass warms up the JIT
+        for(int pass = 0; pass < 2; pass++) {
+            double unromCopy = benchmark.runCopies(switches, 1, 0x4000);
+            double unromWindow = benchmark.runWindows(unrom, switches);
+            double cnromCopy = benchmark.runCopies(switches, 2, 0x1000);
+            double cnromWindow = benchmark.runWindows(cnrom, switches);
+            
+            if(pass == 0) continue;
+            
+            System.out.println("bank select writes: " + switches);
+            System.out.println("UNROM  copy (before): " + format(unromCopy) + " ns/write");
+            System.out.println("UNROM  window (after): " + format(unromWindow) + " ns/write");
+            System.out.println("CNROM  copy (before): " + format(cnromCopy) + " ns/write");
+            System.out.println("CNROM  window (after): " + format(cnromWindow) + " ns/write");
+        }
+        
+        System.exit(0);
+    }
+    
+    
+    private static String format(double value) {
+        return Double.toString(Math.round(value*100)/100.0);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package beanes.benchmark;
+
+import beanes.*;
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * The cpu running a loop of one instruction mix the way the clock runs it (up
+ * to the next event, then the events), with the ppu and apu left off.
+ *
+ * An event slice is not a fixed number of instructions, so the instructions
+ * run are counted separately; the "instructions" secondary result is the one
+ * to compare.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class CPUBenchmark {
+    
+    // immediate and register instructions
+    public static final int[] ALU_MIX = {
+        0xA9, 0x01,             // LDA #$01
+        0x69, 0x03,             // ADC #$03
+        0x29, 0x7F,             // AND #$7F
+        0x09, 0x10,             // ORA #$10
+        0x49, 0x55,             // EOR #$55
+        0xAA,                   // TAX
+        0xE8,                   // INX
+        0x88,                   // DEY
+        0xC9, 0x40,             // CMP #$40
+        0x0A,                   // ASL A
+        0x4A,                   // LSR A
+        0x18,                   // CLC
+        0x4C, 0x00, 0xC0,       // JMP $C000
+    };
+    
+    // zero page, absolute, indexed and indirect reads and writes
+    public static final int[] MEMORY_MIX = {
+        0xA5, 0x10,             // LDA $10
+        0x85, 0x11,             // STA $11
+        0xAD, 0x00, 0x03,       // LDA $0300
+        0x8D, 0x01, 0x03,       // STA $0301
+        0xBD, 0x00, 0x03,       // LDA $0300,X
+        0x9D, 0x00, 0x04,       // STA $0400,X
+        0xE6, 0x12,             // INC $12
+        0xB1, 0x14,             // LDA ($14),Y
+        0x91, 0x14,             // STA ($14),Y
+        0xAD, 0x00, 0xC0,       // LDA $C000
+        0xE8,                   // INX
+        0x4C, 0x00, 0xC0,       // JMP $C000
+    };
+    
+    // branches, subroutine calls and the stack
+    public static final int[] BRANCH_MIX = {
+        0xA2, 0x10,             // $C000 LDX #$10
+        0xCA,                   // $C002 DEX
+        0xD0, 0xFD,             // $C003 BNE $C002
+        0x20, 0x0D, 0xC0,       // $C005 JSR $C00D
+        0x48,                   // $C008 PHA
+        0x68,                   // $C009 PLA
+        0x4C, 0x00, 0xC0,       // $C00A JMP $C000
+        0x60,                   // $C00D RTS
+    };
+    
+    
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long instructions;
+        
+        @Setup(Level.Iteration)
+        public void clear() {
+            instructions = 0;
+        }
+    }
+    
+    
+    @Param({"alu", "memory", "branch"})
+    public String mix;
+    
+    @Param({"interpreter", "blockCache", "blockCompiler"})
+    public String tier;
+    
+    private CPU cpu;
+    private Scheduler scheduler;
+    
+    
+    @Setup
+    public void setUp() throws IOException {
+        int[] program = ALU_MIX;
+        if(mix.equals("memory")) program = MEMORY_MIX;
+        else if(mix.equals("branch")) program = BRANCH_MIX;
+        
+        BeaNES nes = BankSwitchBenchmark.createNES(BankSwitchBenchmark.createROM(program, 0xC000));
+        cpu = nes.getCPU();
+        scheduler = nes.getScheduler();
+        cpu.setBlockCache(!tier.equals("interpreter"));
+        cpu.setBlockCompiler(tier.equals("blockCompiler"));
+    }
+    
+    
+    @Benchmark
+    public void instructions(Counters counters) {
+        long start = cpu.getNumInstructionsRan();
+        
+        cpu.runToNextEvent();
+        scheduler.runEvents(cpu.getNumCyclesRan());
+        
+        counters.instructions += cpu.getNumInstructionsRan() - start;
+    }
+}
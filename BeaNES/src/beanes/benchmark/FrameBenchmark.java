@@ -0,0 +1,90 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package beanes.benchmark;
+
+import beanes.*;
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Whole frames on a HeadlessRunner, either of a given rom (-p rom=file) or of
+ * a generated one that keeps background and sprites on and does sprite DMA
+ * every vblank.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class FrameBenchmark {
+    
+    private static final int NMI = 0xC01D;
+    
+    public static final int[] PROGRAM = {
+        0x78,                   // $C000 SEI
+        0xA2, 0x00,             // $C001 LDX #$00
+        0x8A,                   // $C003 TXA
+        0x9D, 0x00, 0x02,       // $C004 STA $0200,X    sprites all over the screen
+        0xE8,                   // $C007 INX
+        0xD0, 0xF9,             // $C008 BNE $C003
+        0xA9, 0x80,             // $C00A LDA #$80
+        0x8D, 0x00, 0x20,       // $C00C STA $2000      nmi on
+        0xA9, 0x18,             // $C00F LDA #$18
+        0x8D, 0x01, 0x20,       // $C011 STA $2001      background and sprites on
+        0xE6, 0x10,             // $C014 INC $10
+        0xA5, 0x10,             // $C016 LDA $10
+        0x69, 0x03,             // $C018 ADC #$03
+        0x4C, 0x14, 0xC0,       // $C01A JMP $C014
+        0x48,                   // $C01D PHA
+        0xA9, 0x02,             // $C01E LDA #$02
+        0x8D, 0x14, 0x40,       // $C020 STA $4014      sprite DMA
+        0x68,                   // $C023 PLA
+        0x40,                   // $C024 RTI
+    };
+    
+    /** the rom file to run, "generated" for PROGRAM */
+    @Param({"generated"})
+    public String rom;
+    
+    private HeadlessRunner runner;
+    
+    
+    @Setup
+    public void setUp() throws IOException {
+        File file;
+        
+        if(rom.equals("generated"))
+            file = BankSwitchBenchmark.writeROM(BankSwitchBenchmark.createROM(PROGRAM, NMI), "frame");
+        else
+            file = new File(rom);
+        
+        runner = new HeadlessRunner(file);
+    }
+    
+    
+    @Benchmark
+    public void frame() {
+        runner.run(1);
+    }
+}
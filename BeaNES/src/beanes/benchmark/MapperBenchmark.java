@@ -0,0 +1,70 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package beanes.benchmark;
+
+import beanes.*;
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Bank select writes through the mapper, running the LDA #n / STA $8000 loop
+ * of BankSwitchBenchmark.createROM.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class MapperBenchmark {
+    
+    @Param({"UNROM", "CNROM", "GNROM"})
+    public String mapper;
+    
+    private CPU cpu;
+    private int writes;
+    
+    
+    @Setup
+    public void setUp() throws IOException {
+        byte[] data;
+        
+        if(mapper.equals("CNROM")) data = BankSwitchBenchmark.createROM(3, 2, 4);
+        else if(mapper.equals("GNROM")) data = BankSwitchBenchmark.createROM(66, 2, 4);
+        else data = BankSwitchBenchmark.createROM(2, 8, 0);
+        
+        cpu = BankSwitchBenchmark.createNES(data).getCPU();
+        writes = 0;
+    }
+    
+    
+    @Benchmark
+    public void bankSelect() {
+        cpu.processNextInstruction();       // LDA #n
+        cpu.processNextInstruction();       // STA $8000
+        
+        // JMP back after the 8 writes of the loop
+        if((++writes & 7) == 0)
+            cpu.processNextInstruction();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package beanes.benchmark;
+
+import beanes.*;
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * PPU.renderScanline on one line in the middle of the screen with background
+ * and sprites on and the given number of sprites on that line. The sprite limit
+ * is off so all of them get drawn.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class ScanlineBenchmark {
+    
+    private static final int LINE = 100;
+    
+    @Param({"0", "1", "8", "64"})
+    public int sprites;
+    
+    private PPU ppu;
+    
+    
+    @Setup
+    public void setUp() throws IOException {
+        BeaNES nes = BankSwitchBenchmark.createNES(BankSwitchBenchmark.createROM(CPUBenchmark.ALU_MIX, 0xC000));
+        ppu = nes.getPPU();
+        
+        // the frame starts at the cycle the ppu was reset on, run up to the line with rendering off
+        ppu.catchUp(nes.getCPU().getNumCyclesRan() + LINE*PPU.DOTS_PER_SCANLINE/3);
+        
+        ppu.externalWrite(0x2003, (short)0);
+        for(int i = 0; i < 64; i++) {
+            boolean visible = i < sprites;
+            
+            ppu.externalWrite(0x2004, (short)(visible?LINE-1-(i&7):0xF0));    // y
+            ppu.externalWrite(0x2004, (short)i);                                // tile
+            ppu.externalWrite(0x2004, (short)((i&3) | ((i&8) << 3)));           // palette, flip
+            ppu.externalWrite(0x2004, (short)((i*4)&0xFF));                     // x
+        }
+        
+        ppu.setSpriteLimit(false);
+        ppu.externalWrite(0x2001, (short)0x18);
+    }
+    
+    
+    @Benchmark
+    public void renderScanline() {
+        ppu.renderScanline();
+    }
+}
@@ -21,42 +21,54 @@ package beanes.mappers;
 
 import beanes.*;
 import java.util.*;
+import java.nio.*;
 
 
 public class AOROMMapper extends NESMapper {
 
-    int offset;
+    int bank;
     int mirroring;
-    short[] prgROM;
     
     public AOROMMapper(BeaNES nes) {
         super(nes);
 
-        offset = 0;
+        bank = 1;
         mirroring = -1;
-        
-        int banks = nes.getROM().numPRGBanks;
-        prgROM = new short[banks*0x4000];
-        for(int i = 0; i < banks; i++)
-            System.arraycopy(nes.getROM().getROMBank(i), 0, prgROM, i*0x4000, 0x4000);
-        
     }
     
-    public short read(int address) {
-        if(address < 0x8000) {
-            return super.read(address);
-        }
-        else {
-            return prgROM[address+offset];
-        }
+    /**
+     * Points all four PRG windows at the selected 32K bank.
+     */
+    private void mapPRG() {
+        for(int i = 0; i < 4; i++)
+            setPRGWindow(i, bank*4 + i);
+    }
+    
+    public void loadROM(ROM rom) {
+        mapPRG();
     }
     
+    public void saveState(ByteBuffer out) {
+        super.saveState(out);
+        out.put((byte)bank);
+        out.put((byte)mirroring);
+    }
+    
+    
+    public void loadState(ByteBuffer in) {
+        super.loadState(in);
+        bank = in.get();
+        mirroring = in.get();
+    }
+    
+    
     public void write(int address, short value) {
         if(address < 0x8000) {
             super.write(address, value);
         }
         else {
-            offset = ((value&0xF)-1) << 0xF;
+            bank = value&0xF;
+            mapPRG();
             
             if(mirroring != (value&0x10)) {
                 mirroring = value&0x10;
@@ -0,0 +1,154 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package beanes.mappers;
+
+import beanes.*;
+import java.nio.*;
+
+
+/**
+ * Nintendo MMC1 (SxROM). The registers are written a bit at a time through a
+ * serial shift register: five writes with the bit in bit 0 load the register
+ * picked by the address of the last write, a write with bit 7 set resets
+ * the shift register and fixes the last PRG bank at 0xC000.
+ *
+ *   0x8000  control: mirroring (bits 0-1), PRG mode (2-3), CHR mode (4)
+ *   0xA000  CHR bank 0 (bit 4 picks the 256K PRG half on 512K boards)
+ *   0xC000  CHR bank 1
+ *   0xE000  PRG bank
+ */
+public class MMC1Mapper extends NESMapper {
+    
+    private int shift;
+    private int shiftCount;
+    private int control = 0x0C;
+    private int chrBank0;
+    private int chrBank1;
+    private int prgBank;
+    
+    // name table layout of each value of the mirroring bits
+    private static final int[] MIRRORING = {
+        ROM.SINGLESCREEN_MIRRORING, ROM.SINGLESCREEN_MIRRORING2, ROM.VERTICAL_MIRRORING, ROM.HORIZONTAL_MIRRORING };
+    
+    
+    public MMC1Mapper(BeaNES nes) {
+        super(nes);
+    }
+    
+    
+    public void loadROM(ROM rom) {
+        updateBanks();
+    }
+    
+    
+    public void write(int address, short value) {
+        if(address < 0x8000) {
+            super.write(address, value);
+            return;
+        }
+        
+        if((value & 0x80) != 0) {
+            shift = 0;
+            shiftCount = 0;
+            control |= 0x0C;
+            updateBanks();
+            return;
+        }
+        
+        shift |= (value & 1) << shiftCount;
+        if(++shiftCount < 5)
+            return;
+        
+        switch(address & 0xE000) {
+            case 0x8000: control = shift; updateMirroring(); break;
+            case 0xA000: chrBank0 = shift; break;
+            case 0xC000: chrBank1 = shift; break;
+            default: prgBank = shift & 0x0F; break;
+        }
+        
+        shift = 0;
+        shiftCount = 0;
+        updateBanks();
+    }
+    
+    
+    private void updateBanks() {
+        int banks = nes.getROM().numPRGBanks;
+        
+        // 512K boards switch 256K halves with bit 4 of the CHR bank
+        int outer = (banks > 16)?(chrBank0 & 0x10):0;
+        int last = outer | (Math.min(banks, 16) - 1);
+        
+        switch((control >> 2) & 3) {
+            case 0:
+            case 1:
+                loadROMBank(outer | (prgBank & 0x0E), 0x8000);
+                loadROMBank(outer | (prgBank & 0x0E) | 1, 0xC000);
+                break;
+            case 2:
+                loadROMBank(outer, 0x8000);
+                loadROMBank(outer | prgBank, 0xC000);
+                break;
+            default:
+                loadROMBank(outer | prgBank, 0x8000);
+                loadROMBank(last, 0xC000);
+                break;
+        }
+        
+        if((control & 0x10) == 0) {
+            loadVROMBank(chrBank0 & 0x1E, 0x0000);
+            loadVROMBank((chrBank0 & 0x1E) | 1, 0x1000);
+        } else {
+            loadVROMBank(chrBank0, 0x0000);
+            loadVROMBank(chrBank1, 0x1000);
+        }
+    }
+    
+    
+    /**
+     * The header's mirroring is used until the game writes the control register.
+     */
+    private void updateMirroring() {
+        nes.getPPU().setMirroringMode(MIRRORING[control & 3]);
+    }
+    
+    
+    public void saveState(ByteBuffer out) {
+        super.saveState(out);
+        out.put((byte)shift);
+        out.put((byte)shiftCount);
+        out.put((byte)control);
+        out.put((byte)chrBank0);
+        out.put((byte)chrBank1);
+        out.put((byte)prgBank);
+    }
+    
+    
+    public void loadState(ByteBuffer in) {
+        super.loadState(in);
+        shift = in.get();
+        shiftCount = in.get();
+        control = in.get();
+        chrBank0 = in.get();
+        chrBank1 = in.get();
+        prgBank = in.get();
+    }
+}
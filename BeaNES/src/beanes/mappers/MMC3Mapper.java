@@ -0,0 +1,196 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+
+package beanes.mappers;
+
+import beanes.*;
+import java.nio.*;
+
+
+/**
+ * Nintendo MMC3 (TxROM). Four 8K PRG windows, two of them switchable, and
+ * eight 1K CHR windows switched in 2K and 1K units. Registers are picked by
+ * the address range and whether the address is even or odd:
+ *
+ *   0x8000/0x8001  bank select / bank data
+ *   0xA000/0xA001  mirroring / PRG RAM protect (ignored)
+ *   0xC000/0xC001  IRQ latch / IRQ reload
+ *   0xE000/0xE001  IRQ disable and acknowledge / IRQ enable
+ *
+ * The IRQ counter is clocked by rises of PPU A12, once per rendered scanline
+ * when the background and sprites use different pattern tables. The mapper
+ * only listens to the ppu once the game has touched the IRQ registers.
+ */
+public class MMC3Mapper extends NESMapper implements ScanlineListener {
+    
+    private int bankSelect;
+    private int[] registers = new int[8];
+    private int irqLatch;
+    private int irqCounter;
+    private boolean irqReload;
+    private boolean irqEnabled;
+    private boolean listening;
+    
+    
+    public MMC3Mapper(BeaNES nes) {
+        super(nes);
+    }
+    
+    
+    public void loadROM(ROM rom) {
+        registers[6] = 0;
+        registers[7] = 1;
+        
+        for(int i = 0; i < 6; i++)
+            registers[i] = (i < 2)?i*2:i + 2;
+        
+        updatePRGBanks();
+        updateCHRBanks();
+    }
+    
+    
+    public void write(int address, short value) {
+        if(address < 0x8000) {
+            super.write(address, value);
+            return;
+        }
+        
+        boolean odd = (address & 1) != 0;
+        
+        switch(address & 0xE000) {
+            case 0x8000:
+                if(odd) {
+                    registers[bankSelect & 7] = value;
+                } else {
+                    bankSelect = value;
+                }
+                
+                updatePRGBanks();
+                updateCHRBanks();
+                break;
+            case 0xA000:
+                // four-screen boards ignore the mirroring register
+                if(!odd && nes.getROM().getMirroringMode() != ROM.FOURSCREEN_MIRRORING)
+                    nes.getPPU().setMirroringMode(((value & 1) == 0)?ROM.VERTICAL_MIRRORING:ROM.HORIZONTAL_MIRRORING);
+                break;
+            case 0xC000:
+                if(odd) {
+                    irqCounter = 0;
+                    irqReload = true;
+                } else {
+                    irqLatch = value;
+                }
+                listen();
+                break;
+            default:
+                irqEnabled = odd;
+                
+                // disabling also acknowledges a pending irq
+                if(!odd)
+                    nes.getCPU().setIRQLine(CPU.IRQ_SOURCE_MAPPER, false);
+                listen();
+                break;
+        }
+    }
+    
+    
+    private void updatePRGBanks() {
+        int last = nes.getROM().numPRGBanks*2 - 1;
+        
+        if((bankSelect & 0x40) == 0) {
+            setPRGWindow(0, registers[6]);
+            setPRGWindow(2, last - 1);
+        } else {
+            setPRGWindow(0, last - 1);
+            setPRGWindow(2, registers[6]);
+        }
+        
+        setPRGWindow(1, registers[7]);
+        setPRGWindow(3, last);
+    }
+    
+    
+    private void updateCHRBanks() {
+        // the 2K banks go to 0x1000 instead of 0x0000 when inverted
+        int inversion = ((bankSelect & 0x80) != 0)?4:0;
+        
+        setCHRWindow(inversion, registers[0] & 0xFE);
+        setCHRWindow(inversion + 1, registers[0] | 1);
+        setCHRWindow(inversion + 2, registers[1] & 0xFE);
+        setCHRWindow(inversion + 3, registers[1] | 1);
+        
+        for(int i = 0; i < 4; i++)
+            setCHRWindow((inversion ^ 4) + i, registers[2 + i]);
+    }
+    
+    
+    private void listen() {
+        if(!listening) {
+            nes.getPPU().setScanlineListener(this, ScanlineListener.A12_RISE);
+            listening = true;
+        }
+    }
+    
+    
+    public void scanline(int line, long time) {
+    }
+    
+    
+    public void a12Rise(long time) {
+        if(irqCounter == 0 || irqReload) {
+            irqCounter = irqLatch;
+            irqReload = false;
+        } else {
+            irqCounter--;
+        }
+        
+        if(irqCounter == 0 && irqEnabled)
+            nes.getCPU().setIRQLine(CPU.IRQ_SOURCE_MAPPER, true);
+    }
+    
+    
+    public void saveState(ByteBuffer out) {
+        super.saveState(out);
+        out.put((byte)bankSelect);
+        for(int i = 0; i < registers.length; i++)
+            out.put((byte)registers[i]);
+        out.put((byte)irqLatch);
+        out.put((byte)irqCounter);
+        out.put((byte)(irqReload?1:0));
+        out.put((byte)(irqEnabled?1:0));
+        out.put((byte)(listening?1:0));
+    }
+    
+    
+    public void loadState(ByteBuffer in) {
+        super.loadState(in);
+        bankSelect = in.get() & 0xFF;
+        for(int i = 0; i < registers.length; i++)
+            registers[i] = in.get() & 0xFF;
+        irqLatch = in.get() & 0xFF;
+        irqCounter = in.get() & 0xFF;
+        irqReload = in.get() != 0;
+        irqEnabled = in.get() != 0;
+        
+        if(in.get() != 0)
+            listen();
+    }
+}
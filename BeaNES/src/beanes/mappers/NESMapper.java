@@ -21,23 +21,42 @@ package beanes.mappers;
 
 import beanes.*;
 import java.util.*;
+import java.nio.*;
 
 public class NESMapper implements MemoryMapper{
     
+    public static final int PRG_WINDOW_SIZE = 0x2000;
+    public static final int CHR_WINDOW_SIZE = 0x400;
+    
     protected BeaNES nes;
     
+    // 8K bank selected in each PRG window (0x8000, 0xA000, 0xC000, 0xE000)
+    protected int[] prgWindows = new int[4];
+    
+    // 1K bank selected in each CHR window (0x0000-0x1FFF in steps of 0x400)
+    protected int[] chrWindows = new int[8];
+    
     public NESMapper(BeaNES nes) {
         this.nes = nes;
+        
+        // every cartridge starts out with the standard page table
+        nes.getCPU().initMemoryMap();
+        
+        // and no scanline counter until the mapper asks for one
+        nes.getPPU().setScanlineListener(null, 0);
+        
+        for(int i = 0; i < chrWindows.length; i++)
+            setCHRWindow(i, i);
     }
     
     /**
      * Reads a value from memory map (memory/IO)
      */
-    public short read(int address) {
-        short value = 0;
+    public int read(int address) {
+        int value = 0;
         // RAM
         if(address < 0x2000) {
-            value = nes.getCPU().cpuMemory[address&0x7FF];  // 0x7FF for mirroring
+            value = nes.getCPU().cpuMemory[address&0x7FF] & 0xFF;  // 0x7FF for mirroring
         }
         // PPU communication
         else if(address <= 0x2007) {
@@ -56,7 +75,7 @@ public class NESMapper implements MemoryMapper{
             value = 0;
             value = nes.getCPU().readJoypadInput(1);
         } else if(address > 0x4017) {
-            value = nes.getCPU().cpuMemory[address];
+            value = nes.getCPU().cpuMemory[address] & 0xFF;
 
         } else {
             System.out.println("Illegal PPU adress read " + Integer.toHexString(address));
@@ -74,7 +93,7 @@ public class NESMapper implements MemoryMapper{
     public void write(int address, short value) {
         // RAM
         if (address < 0x2000) {
-            nes.getCPU().cpuMemory[address&0x7FF] = value;
+            nes.getCPU().cpuMemory[address&0x7FF] = (byte)value;
         }
         // PPU communication
         else if(address <= 0x2007) {
@@ -95,7 +114,7 @@ public class NESMapper implements MemoryMapper{
             nes.getCPU().writeJoypadInput(1, value);
             
         } else if(address > 0x4017) {
-            nes.getCPU().cpuMemory[address] = value;
+            nes.getCPU().cpuMemory[address] = (byte)value;
             
             
         } else {
@@ -118,11 +137,85 @@ public class NESMapper implements MemoryMapper{
         }
     }
     
+    /**
+     * Points an 8K PRG window at an 8K bank of the PRG ROM.
+     * Only the cpu page table is updated, nothing is copied.
+     */
+    public void setPRGWindow(int window, int bank) {
+        bank %= nes.getROM().numPRGBanks*2;
+        prgWindows[window] = bank;
+        
+        nes.getCPU().mapReadOnly(0x8000 + window*PRG_WINDOW_SIZE, PRG_WINDOW_SIZE,
+                nes.getROM().getROMBank(bank >> 1), (bank & 1)*PRG_WINDOW_SIZE);
+    }
+    
+    
+    /**
+     * Points a 1K CHR window at a 1K bank of the CHR ROM, or of the 8K CHR RAM
+     * if the cartridge has no CHR ROM.
+     */
+    public void setCHRWindow(int window, int bank) {
+        ROM rom = nes.getROM();
+        PPU ppu = nes.getPPU();
+        
+        if(rom.numCHRBanks == 0) {
+            bank &= 7;
+            ppu.mapCHR(window*CHR_WINDOW_SIZE, CHR_WINDOW_SIZE, ppu.ppuMemory, ppu.getCHRRAMTiles(), bank*CHR_WINDOW_SIZE, true);
+        } else {
+            bank %= rom.numCHRBanks*4;
+            ppu.mapCHR(window*CHR_WINDOW_SIZE, CHR_WINDOW_SIZE, rom.getVROMBank(bank >> 2), rom.getVROMTiles(bank >> 2), (bank & 3)*CHR_WINDOW_SIZE, false);
+        }
+        
+        chrWindows[window] = bank;
+    }
+    
+    
+    public void saveState(ByteBuffer out) {
+        for(int i = 0; i < prgWindows.length; i++)
+            out.putShort((short)prgWindows[i]);
+        
+        for(int i = 0; i < chrWindows.length; i++)
+            out.putShort((short)chrWindows[i]);
+    }
+    
+    
+    public void loadState(ByteBuffer in) {
+        for(int i = 0; i < prgWindows.length; i++)
+            setPRGWindow(i, in.getShort());
+        
+        for(int i = 0; i < chrWindows.length; i++)
+            setCHRWindow(i, in.getShort());
+    }
+    
+    
+    public int getPRGWindow(int window) {
+        return prgWindows[window];
+    }
+    
+    
+    public int getCHRWindow(int window) {
+        return chrWindows[window];
+    }
+    
+    
+    /**
+     * Switches a 16K PRG ROM bank in at address (0x8000 or 0xC000).
+     */
     public void loadROMBank(int bank, int address) {
-        System.arraycopy(nes.getROM().getROMBank(bank), 0, nes.getCPU().cpuMemory, address, 0x4000);
+        int window = (address - 0x8000) / PRG_WINDOW_SIZE;
+        
+        setPRGWindow(window, bank*2);
+        setPRGWindow(window+1, bank*2+1);
     }
     
+    
+    /**
+     * Switches a 4K CHR ROM bank in at address (0x0000 or 0x1000).
+     */
     public void loadVROMBank(int bank, int address) {
-        System.arraycopy(nes.getROM().getVROMBank(bank), 0, nes.getPPU().ppuMemory, address, 0x1000);
+        int window = address / CHR_WINDOW_SIZE;
+        
+        for(int i = 0; i < 4; i++)
+            setCHRWindow(window+i, bank*4+i);
     }
 }
@@ -0,0 +1,48 @@
+/*
+*  Copyright (C) 2008 Don Honerbrink, Chris Frericks
+*
+*  This file is part of BeaNES.
+*
+*  BeaNES is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*   BeaNES is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with BeaNES.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package beanes.mappers;
+
+import beanes.*;
+
+
+/**
+ * The mappers that come with BeaNES.
+ */
+public class StandardMappers implements MapperProvider {
+    
+    public int[] getMapperNumbers() {
+        return new int[] {0, 1, 2, 3, 4, 7, 66};
+    }
+    
+    
+    public MemoryMapper createMapper(int number, BeaNES nes) {
+        switch(number) {
+            case 0: return new NESMapper(nes);
+            case 1: return new MMC1Mapper(nes);
+            case 2: return new UNIROMMapper(nes);
+            case 3: return new CNROMMapper(nes);
+            case 4: return new MMC3Mapper(nes);
+            case 7: return new AOROMMapper(nes);
+            case 66: return new GNROMMapper(nes);
+            default: return null;
+        }
+    }
+}